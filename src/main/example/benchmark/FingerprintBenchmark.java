@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.example.benchmark;
+
+import cc.gospy.core.entity.Task;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+// a repeatable microbenchmark of the duplicate lookups on tasks, with the cached fingerprint
+// against the hashCode and equals of the task before it was cached, which ran a murmur3_32
+// digest on every call (and on both sides of equals). every round uses fresh tasks, inserts
+// them and then looks up equal copies, so a fingerprint is computed once per task as in a
+// crawl. run it with a fixed heap, e.g. -Xms1g -Xmx1g, and compare the rounds after the warmup.
+public class FingerprintBenchmark {
+    private static final int TASKS = 200_000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        long blackhole = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            Task[] tasks = newTasks(), copies = newTasks();
+            System.gc(); // keep the garbage of the setup out of the measurement
+            long cached = System.nanoTime();
+            blackhole += cached(tasks, copies);
+            cached = System.nanoTime() - cached;
+
+            LegacyTask[] legacyTasks = legacy(newTasks()), legacyCopies = legacy(newTasks());
+            System.gc();
+            long digest = System.nanoTime();
+            blackhole += digest(legacyTasks, legacyCopies);
+            digest = System.nanoTime() - digest;
+            System.out.printf("%s round %d: cached %.1f ns/op, digest %.1f ns/op%n",
+                    round < WARMUP_ROUNDS ? "warmup" : "measure", round,
+                    (double) cached / TASKS / 2, (double) digest / TASKS / 2);
+        }
+        System.out.println("(" + blackhole + ")");
+    }
+
+    private static Task[] newTasks() {
+        Task[] tasks = new Task[TASKS];
+        for (int i = 0; i < TASKS; i++) {
+            tasks[i] = new Task("http://www.example.com/item?id=" + i);
+            tasks[i].getExtra().put("referer", "http://www.example.com/list?page=" + i / 50);
+            tasks[i].getExtra().put("depth", i % 8);
+        }
+        return tasks;
+    }
+
+    private static LegacyTask[] legacy(Task[] tasks) {
+        LegacyTask[] legacyTasks = new LegacyTask[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            legacyTasks[i] = new LegacyTask(tasks[i]);
+        }
+        return legacyTasks;
+    }
+
+    // one insert per task and one lookup per copy
+    private static long cached(Task[] tasks, Task[] copies) {
+        Set<Task> set = new HashSet<>();
+        long hits = 0;
+        for (Task task : tasks) {
+            set.add(task);
+        }
+        for (Task copy : copies) {
+            hits += set.contains(copy) ? 1 : 0;
+        }
+        return hits;
+    }
+
+    private static long digest(LegacyTask[] tasks, LegacyTask[] copies) {
+        Set<LegacyTask> set = new HashSet<>();
+        long hits = 0;
+        for (LegacyTask task : tasks) {
+            set.add(task);
+        }
+        for (LegacyTask copy : copies) {
+            hits += set.contains(copy) ? 1 : 0;
+        }
+        return hits;
+    }
+
+    // the identity of a task before the fingerprint, as it was in Task itself
+    private static final class LegacyTask {
+        private static final Funnel<Task> DIGEST = (task, primitiveSink) -> {
+            primitiveSink.putString(task.getUrl(), Charset.defaultCharset());
+            task.getExtra().forEach((k, v) -> primitiveSink.putString(k.concat("=").concat(v.toString().concat("\1")), Charset.defaultCharset()));
+        };
+
+        private final Task task;
+
+        private LegacyTask(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return this.hashCode() == o.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return Hashing.murmur3_32().newHasher().putObject(task, DIGEST).hash().hashCode();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.example.benchmark;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.fetcher.impl.HttpFetcher;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Executors;
+
+// a repeatable microbenchmark of the http fetcher against a local server, with keep-alive,
+// with keep-alive off on the shared client ("Connection: close"), and the former keep-alive
+// off path which built a connection manager, an ssl context and a client for every request.
+public class HttpFetcherBenchmark {
+    private static final int REQUESTS = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final byte[] BODY = new byte[4096];
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, BODY.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(BODY);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/page";
+
+        HttpFetcher keepAlive = HttpFetcher.custom().setAutoKeepAlive(true).build();
+        HttpFetcher close = HttpFetcher.custom().setAutoKeepAlive(false).build();
+        long blackhole = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long keepAliveNanos = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                blackhole += keepAlive.fetch(new Task(url + "?id=" + i)).getContent().length;
+            }
+            keepAliveNanos = System.nanoTime() - keepAliveNanos;
+            long closeNanos = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                blackhole += close.fetch(new Task(url + "?id=" + i)).getContent().length;
+            }
+            closeNanos = System.nanoTime() - closeNanos;
+            long perRequestNanos = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                blackhole += clientPerRequest(url + "?id=" + i);
+            }
+            perRequestNanos = System.nanoTime() - perRequestNanos;
+            System.out.printf("%s round %d: keep-alive %.1f us/op, connection close %.1f us/op, client per request %.1f us/op%n",
+                    round < WARMUP_ROUNDS ? "warmup" : "measure", round,
+                    keepAliveNanos / 1000.0 / REQUESTS, closeNanos / 1000.0 / REQUESTS, perRequestNanos / 1000.0 / REQUESTS);
+        }
+        System.out.println("(" + blackhole + ")");
+        keepAlive.close();
+        close.close();
+        server.stop(0);
+        ((java.util.concurrent.ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    // what fetch() did for every task with keep-alive off before the client was shared
+    private static long clientPerRequest(String url) throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder
+                .<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.INSTANCE)
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build());
+        try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).disableContentCompression().build();
+             CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+            return EntityUtils.toByteArray(response.getEntity()).length;
+        }
+    }
+}
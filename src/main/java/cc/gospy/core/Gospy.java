@@ -19,6 +19,7 @@ package cc.gospy.core;
 import cc.gospy.core.entity.Page;
 import cc.gospy.core.entity.Result;
 import cc.gospy.core.entity.Task;
+import cc.gospy.core.fetcher.AsyncFetcher;
 import cc.gospy.core.fetcher.Fetcher;
 import cc.gospy.core.fetcher.Fetchers;
 import cc.gospy.core.pipeline.Pipeline;
@@ -34,26 +35,18 @@ import ch.qos.logback.classic.Level;
 import com.brandwatch.robots.RobotsConfig;
 import com.brandwatch.robots.RobotsFactory;
 import com.brandwatch.robots.RobotsService;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import us.codecraft.xsoup.Xsoup;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Array;
-import java.lang.reflect.Field;
 import java.net.URI;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
 
 public class Gospy implements Observable {
     private static final Logger logger = LoggerFactory.getLogger(Gospy.class);
+    private static final long DISPATCH_WAIT_MILLIS = 1000;
 
     private final String identifier;
 
@@ -63,6 +56,8 @@ public class Gospy implements Observable {
     private Processors processorFactory;
     private Pipelines pipelineFactory;
     private ExecutorService threadPool;
+    private Semaphore workerSlots;
+    private Semaphore asyncFetchSlots;
     private ExceptionHandler handler;
     private int visitGapMillis;
     private volatile boolean running;
@@ -75,6 +70,7 @@ public class Gospy implements Observable {
             , Processors processorFactory
             , Pipelines pipelineFactory
             , ExceptionHandler handler
+            , int maxAsyncFetches
             , boolean checkForRobots) {
         this.identifier = identifier;
         this.scheduler = scheduler;
@@ -83,6 +79,7 @@ public class Gospy implements Observable {
         this.processorFactory = processorFactory;
         this.pipelineFactory = pipelineFactory;
         this.handler = handler;
+        this.asyncFetchSlots = new Semaphore(maxAsyncFetches);
         this.visitGapMillis = 0;
         this.running = true;
         this.operationChainThread = newOperationChainThread();
@@ -100,125 +97,169 @@ public class Gospy implements Observable {
 
     public Thread newOperationChainThread() {
         return new Thread(() -> {
-            Task t0;
             while (running) {
-                while ((t0 = scheduler.getTask(identifier)) != null) {
-                    Task task = t0;
+                Task t0;
+                try {
+                    // only take a task when there is a free worker, so that tasks are
+                    // never piled up in the thread pool while the fetchers are slow.
+                    workerSlots.acquire();
+                    t0 = scheduler.takeTask(identifier, DISPATCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (t0 == null) {
+                    workerSlots.release();
+                    continue;
+                }
+                Task task = t0;
+                // the async slot is taken here rather than in a worker, a worker waiting for it
+                // would hold the pool thread that the completion releasing it has to run on.
+                // the tasks are dispatched in order, so while the async fetches are all in
+                // flight, the tasks behind (synchronous ones too) wait for one of them to end.
+                boolean async = isAsync(task);
+                if (async) {
+                    try {
+                        asyncFetchSlots.acquire();
+                    } catch (InterruptedException e) {
+                        workerSlots.release();
+                        // stopped, the task is already taken and recorded, so report it
+                        // instead of dropping it, the handler may hand it back for a retry
+                        onException(e, task, null);
+                        break;
+                    }
+                }
+                try {
                     threadPool.execute(() -> {
-                        Page page = null;
                         try {
-                            Fetcher fetcher = fetcherFactory.get(task.getProtocol());
-
-                            // check robots.txt
-                            if (!(robotsService == null || robotsService.isAllowed(fetcher.getUserAgent(), URI.create(task.getUrl())))) {
-                                handler.exceptionCaught(new TaskBlockedException("task blocked by robots.txt"), task, null);
-                            }
-
-                            page = fetcher.fetch(task);
-                            Result<?> result;
-                            try {
-                                result = invokePageProcessor(page, pageProcessorFactory.get(page.getTask().getUrl()));
-                            } catch (PageProcessorNotFoundException e) {
-                                result = processorFactory.get(page.getContentType()).process(task, page);
-                            }
-
-                            if (result != null) {
-                                if (result.getNewTasks() != null) {
-                                    Iterator<Task> taskIterator = result.getNewTasks().iterator();
-                                    while (taskIterator.hasNext()) {
-                                        scheduler.addTask(identifier, taskIterator.next());
-                                    }
-                                }
-                                // response to the scheduler after declare new tasks
-                                if (scheduler instanceof Verifiable) {
-                                    ((Verifiable) scheduler).feedback(identifier, task);
-                                }
-                                if (result.getData() != null) {
-                                    Iterator<Pipeline> pipelineIterator = pipelineFactory.get(result.getType()).iterator();
-                                    while (pipelineIterator.hasNext()) {
-                                        pipelineIterator.next().pipe(result);
-                                    }
-                                }
-                            }
-                            Thread.sleep(visitGapMillis);
-                        } catch (Throwable e) {
-                            Collection<Task> tasks = handler.exceptionCaught(e, task, page);
-                            if (tasks != null) {
-                                tasks.forEach(t -> scheduler.addTask(identifier, t));
-                                // response to the scheduler after declare new tasks
-                                if (scheduler instanceof Verifiable) {
-                                    ((Verifiable) scheduler).feedback(task);
-                                }
-                            }
+                            operate(task, async);
+                        } finally {
+                            workerSlots.release();
                         }
                     });
+                } catch (RejectedExecutionException e) {
+                    workerSlots.release();
+                    if (async) {
+                        asyncFetchSlots.release();
+                    }
+                    onException(e, task, null); // stopped
                 }
             }
             logger.info("Operation chain stopped.");
         });
     }
 
-    @Experimental
-    private Result<?> invokePageProcessor(Page page, Class<? extends PageProcessor> clazz) throws Exception {
-        PageProcessor pageProcessor = clazz.newInstance();
-        pageProcessor.setTask(page.getTask());
+    private boolean isAsync(Task task) {
+        try {
+            return fetcherFactory.get(task.getProtocol()) instanceof AsyncFetcher;
+        } catch (Throwable throwable) {
+            return false; // reported by the worker
+        }
+    }
 
+    // holdsAsyncSlot: an async fetch slot is taken for the task by the dispatcher
+    private void operate(Task task, boolean holdsAsyncSlot) {
+        Page page;
         try {
-            byte[] bytes = page.getContent();
-            for (Field field : clazz.getFields()) {
-                Set<String> results = new LinkedHashSet<>();
-                for (Annotation annotation : field.getAnnotations()) {
-                    if (annotation.annotationType() == ExtractBy.XPath.class) {
-                        Document document = Jsoup.parse(new String(bytes));
-                        for (String xpath : ((ExtractBy.XPath) annotation).value()) {
-                            results.addAll(Xsoup.compile(xpath).evaluate(document).list());
-                        }
-                    } else if (annotation.annotationType() == ExtractBy.XPaths.class) {
-                        Document document = Jsoup.parse(new String(bytes));
-                        for (ExtractBy.XPath a : ((ExtractBy.XPaths) annotation).value()) {
-                            for (String xpath : a.value()) {
-                                results.addAll(Xsoup.compile(xpath).evaluate(document).list());
-                            }
-                        }
-                    } else if (annotation.annotationType() == ExtractBy.Regex.class) {
-                        String document = new String(bytes);
-                        String regex = ((ExtractBy.Regex) annotation).value();
-                        Matcher matcher = Pattern.compile(regex).matcher(document);
-                        if (matcher.find()) {
-                            results.add(matcher.group(((ExtractBy.Regex) annotation).group()));
-                        }
-                    } else if (annotation.annotationType() == ExtractBy.Regexs.class) {
-                        String document = new String(bytes);
-                        for (ExtractBy.Regex a : ((ExtractBy.Regexs) annotation).value()) {
-                            Matcher matcher = Pattern.compile(a.value()).matcher(document);
-                            if (matcher.find()) {
-                                results.add(matcher.group(a.group()));
-                            }
+            Fetcher fetcher = fetcherFactory.get(task.getProtocol());
+
+            // check robots.txt
+            if (!(robotsService == null || robotsService.isAllowed(fetcher.getUserAgent(), URI.create(task.getUrl())))) {
+                handler.exceptionCaught(new TaskBlockedException("task blocked by robots.txt"), task, null);
+            }
+
+            if (fetcher instanceof AsyncFetcher && holdsAsyncSlot) {
+                // the worker returns once the request is sent, the page will be
+                // processed in the thread pool after its response arrives.
+                // the future is completed in the thread pool, so the page is processed right there
+                CompletableFuture<Page> future = ((AsyncFetcher) fetcher).fetchAsync(task, threadPool);
+                holdsAsyncSlot = false; // released by the completion from now on
+                future.whenComplete((p, e) -> {
+                    try {
+                        if (e != null) {
+                            onException(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e, task, null);
+                        } else {
+                            process(task, p);
                         }
+                    } finally {
+                        asyncFetchSlots.release();
+                    }
+                });
+                return;
+            }
+            page = fetcher.fetch(task);
+        } catch (Throwable e) {
+            onException(e, task, null);
+            return;
+        } finally {
+            if (holdsAsyncSlot) {
+                asyncFetchSlots.release();
+            }
+        }
+        process(task, page);
+    }
+
+    private void process(Task task, Page page) {
+        if (page != null && page.isNotModified()) {
+            // nothing to process or pipe, only the next revisit is scheduled
+            if (task.getExpectedVisitInSeconds() > 0) {
+                scheduler.addLazyTask(identifier, task);
+            }
+            if (scheduler instanceof Verifiable) {
+                ((Verifiable) scheduler).feedback(identifier, task);
+            }
+            return;
+        }
+        try {
+            Result<?> result;
+            try {
+                result = invokePageProcessor(page, pageProcessorFactory.get(page.getTask().getUrl()));
+            } catch (PageProcessorNotFoundException e) {
+                result = processorFactory.get(page.getContentType()).process(task, page);
+            }
+
+            if (result != null) {
+                if (result.getNewTasks() != null) {
+                    Iterator<Task> taskIterator = result.getNewTasks().iterator();
+                    while (taskIterator.hasNext()) {
+                        scheduler.addTask(identifier, taskIterator.next());
                     }
                 }
-                if (results.size() > 0) {
-                    if (field.getType().isArray()) {
-                        if (field.getType().getComponentType().isPrimitive()) {
-                            throw new RuntimeException("We cannot cast a extracted result to a primitive type array, why not trying Object[]?");
-                        }
-                        Object[] src = results.toArray();
-                        Object[] dst = (Object[]) field.getType().cast(Array.newInstance(field.getType().getComponentType(), results.size()));
-                        for (int i = 0; i < dst.length; i++) {
-                            try {
-                                dst[i] = field.getType().getComponentType().cast(src[i]);
-                            } catch (ClassCastException e) {
-                                throw new RuntimeException(e.getMessage() + ", please change your field:" + field.getName() + " to a castable type.");
-                            }
-                        }
-                        field.set(pageProcessor, dst);
-                    } else if (Collection.class.isAssignableFrom(field.getType())) {
-                        field.set(pageProcessor, field.getType().cast(results));
-                    } else {
-                        field.set(pageProcessor, field.getType().cast(results.iterator().next()));
+                // response to the scheduler after declare new tasks
+                if (scheduler instanceof Verifiable) {
+                    ((Verifiable) scheduler).feedback(identifier, task);
+                }
+                if (result.getData() != null) {
+                    Iterator<Pipeline> pipelineIterator = pipelineFactory.get(result.getType()).iterator();
+                    while (pipelineIterator.hasNext()) {
+                        pipelineIterator.next().pipe(result);
                     }
                 }
             }
+            Thread.sleep(visitGapMillis);
+        } catch (Throwable e) {
+            onException(e, task, page);
+        }
+    }
+
+    private void onException(Throwable e, Task task, Page page) {
+        Collection<Task> tasks = handler.exceptionCaught(e, task, page);
+        if (tasks != null) {
+            tasks.forEach(t -> scheduler.addTask(identifier, t));
+            // response to the scheduler after declare new tasks
+            if (scheduler instanceof Verifiable) {
+                ((Verifiable) scheduler).feedback(task);
+            }
+        }
+    }
+
+    @Experimental
+    private Result<?> invokePageProcessor(Page page, Class<? extends PageProcessor> clazz) throws Exception {
+        ExtractionPlan plan = ExtractionPlan.of(clazz);
+        PageProcessor pageProcessor = plan.newInstance();
+        pageProcessor.setTask(page.getTask());
+
+        try {
+            plan.apply(pageProcessor, page.getContent());
             pageProcessor.process();
             Result<?> result = new Result<>(pageProcessor.getNewTasks(), pageProcessor.getResultData());
             result.setPage(page);
@@ -243,6 +284,7 @@ public class Gospy implements Observable {
             throw new RuntimeException("Gospy has already started.");
         }
         this.threadPool = Executors.newFixedThreadPool(nThreads);
+        this.workerSlots = new Semaphore(nThreads);
         logger.info("Thread pool initialized. [size={}]", nThreads);
         operationChainThread.start();
     }
@@ -266,7 +308,7 @@ public class Gospy implements Observable {
     public void stop() {
         //stop scheduler
         this.running = false;
-        notifyAll();
+        operationChainThread.interrupt();
         this.scheduler.stop();
 
         //stop fetchers
@@ -397,6 +439,7 @@ public class Gospy implements Observable {
         private Processors pf = new Processors();
         private Pipelines plf = new Pipelines();
         private ExceptionHandler eh = ExceptionHandler.DEFAULT;
+        private int maf = 1000;
         private boolean cfr = false;
 
         public Builder setIdentifier(String identifier) {
@@ -446,6 +489,13 @@ public class Gospy implements Observable {
             return this;
         }
 
+        // limits the requests in flight of all async fetchers. the dispatcher waits for a free
+        // slot before it goes on, so it throttles the tasks of the other fetchers behind as well
+        public Builder setMaxAsyncFetches(int maxAsyncFetches) {
+            maf = maxAsyncFetches;
+            return this;
+        }
+
         public Builder checkForRobots() {
             cfr = true;
             return this;
@@ -455,7 +505,7 @@ public class Gospy implements Observable {
             if (id == null) {
                 id = StringHelper.getRandomIdentifier();
             }
-            return new Gospy(id, sc, ff, ppf, pf, plf, eh, cfr);
+            return new Gospy(id, sc, ff, ppf, pf, plf, eh, maf, cfr);
         }
 
     }
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.entity;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// compact binary task format (varints, coded protocols, typed extra values), several
+// times smaller and faster than java serialization. it still reads tasks written by
+// java serialization, so old queue files and remote nodes keep working.
+public class BinaryTaskCodec implements TaskCodec {
+    private static final byte VERSION = 2; // 2 adds the linked and sorted map types, 1 is still read
+    private static final int FLAG_SKIP_CHECK = 1;
+    private static final String[] PROTOCOLS = {null, "http", "https", "file", "ftp", "selenium", "phantomjs"};
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    private static final byte T_NULL = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_INT = 2;
+    private static final byte T_LONG = 3;
+    private static final byte T_BOOLEAN = 4;
+    private static final byte T_DOUBLE = 5;
+    private static final byte T_BYTES = 6;
+    private static final byte T_MAP = 7;
+    private static final byte T_LIST = 8;
+    private static final byte T_SERIALIZED = 9;
+    private static final byte T_LINKED_MAP = 10;
+    private static final byte T_SORTED_MAP = 11; // natural order only
+
+    @Override
+    public byte[] encode(Task task) throws IOException {
+        Output out = new Output(64 + task.getUrl().length());
+        out.writeByte(VERSION);
+        out.writeByte(task.isCheckSkipping() ? FLAG_SKIP_CHECK : 0);
+        out.writeByte(task.getPriority());
+        writeUrl(out, task);
+        out.writeVarLong(zigzag(task.getDepth()));
+        out.writeVarLong(zigzag(task.getExpectedVisitInSeconds()));
+        out.writeVarLong(zigzag(task.getVisitCount()));
+        out.writeVarLong(zigzag(task.getCreateTimeMillis()));
+        out.writeVarLong(zigzag(task.getLastVisitTimeMillis() - task.getCreateTimeMillis()));
+        Map<String, Object> extra = task.getExtra();
+        out.writeVarLong(extra.size());
+        for (Map.Entry<String, Object> entry : extra.entrySet()) {
+            out.writeString(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Task decode(byte[] bytes) throws IOException {
+        if (bytes.length > 1 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED) {
+            return (Task) deserialize(bytes); // written by java serialization
+        }
+        Input in = new Input(bytes);
+        byte version = in.readByte();
+        if (version != VERSION && version != 1) {
+            throw new IOException("unsupported task codec version: " + version);
+        }
+        int flags = in.readByte();
+        byte priority = in.readByte();
+        String url = readUrl(in);
+        int depth = (int) unzigzag(in.readVarLong());
+        int expectedVisitInSeconds = (int) unzigzag(in.readVarLong());
+        Task task = new Task(priority, url, depth, expectedVisitInSeconds);
+        task.setSkipCheck((flags & FLAG_SKIP_CHECK) != 0);
+        task.setVisitCount((int) unzigzag(in.readVarLong()));
+        long createTimeMillis = unzigzag(in.readVarLong());
+        task.setCreateTimeMillis(createTimeMillis);
+        task.setLastVisitTimeMillis(createTimeMillis + unzigzag(in.readVarLong()));
+        int extraSize = (int) in.readVarLong();
+        if (extraSize > 0) {
+            Map<String, Object> extra = new HashMap<>();
+            for (int i = 0; i < extraSize; i++) {
+                extra.put(in.readString(), readValue(in));
+            }
+            task.setExtra(extra);
+        }
+        task.intern(INTERNER);
+        return task;
+    }
+
+    private void writeUrl(Output out, Task task) {
+        String url = task.getUrl();
+        String protocol = task.getProtocol();
+        for (int i = 1; i < PROTOCOLS.length; i++) {
+            if (PROTOCOLS[i].equals(protocol)) {
+                out.writeByte(i);
+                out.writeString(url.substring(protocol.length() + 3)); // skip "://"
+                return;
+            }
+        }
+        out.writeByte(0);
+        out.writeString(url);
+    }
+
+    private String readUrl(Input in) throws IOException {
+        int code = in.readByte();
+        if (code < 0 || code >= PROTOCOLS.length) {
+            throw new IOException("unknown protocol code: " + code);
+        }
+        String rest = in.readString();
+        return code == 0 ? rest : PROTOCOLS[code] + "://" + rest;
+    }
+
+    private void writeValue(Output out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(T_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(T_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(T_INT);
+            out.writeVarLong(zigzag((Integer) value));
+        } else if (value instanceof Long) {
+            out.writeByte(T_LONG);
+            out.writeVarLong(zigzag((Long) value));
+        } else if (value instanceof Boolean) {
+            out.writeByte(T_BOOLEAN);
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof Double) {
+            out.writeByte(T_DOUBLE);
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof byte[]) {
+            out.writeByte(T_BYTES);
+            out.writeBytes((byte[]) value);
+        } else if (value instanceof Map && value.getClass().getName().startsWith("java.util.")) {
+            // the order of a linked or naturally sorted map is kept, a map sorted by a custom
+            // comparator comes back as a hash map (the digest orders both the same way)
+            Map<?, ?> map = (Map<?, ?>) value;
+            if (value instanceof LinkedHashMap) {
+                out.writeByte(T_LINKED_MAP);
+            } else if (value instanceof SortedMap && ((SortedMap<?, ?>) value).comparator() == null) {
+                out.writeByte(T_SORTED_MAP);
+            } else {
+                out.writeByte(T_MAP);
+            }
+            out.writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof List && value.getClass().getName().startsWith("java.util.")) {
+            List<?> list = (List<?>) value;
+            out.writeByte(T_LIST);
+            out.writeVarLong(list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Serializable) {
+            out.writeByte(T_SERIALIZED);
+            out.writeBytes(serialize(value));
+        } else {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+    }
+
+    private Object readValue(Input in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return in.readString();
+            case T_INT:
+                return (int) unzigzag(in.readVarLong());
+            case T_LONG:
+                return unzigzag(in.readVarLong());
+            case T_BOOLEAN:
+                return in.readByte() != 0;
+            case T_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case T_BYTES:
+                return in.readBytes();
+            case T_MAP:
+            case T_LINKED_MAP:
+            case T_SORTED_MAP: {
+                int size = (int) in.readVarLong();
+                Map<Object, Object> map = type == T_LINKED_MAP ? new LinkedHashMap<>() : type == T_SORTED_MAP ? new TreeMap<>() : new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(in), readValue(in));
+                }
+                return map;
+            }
+            case T_LIST: {
+                int size = (int) in.readVarLong();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case T_SERIALIZED:
+                return deserialize(in.readBytes());
+            default:
+                throw new IOException("unknown value type: " + type);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream();
+             ObjectOutputStream outputStream = new ObjectOutputStream(stream)) {
+            outputStream.writeObject(object);
+            outputStream.flush();
+            return stream.toByteArray();
+        }
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return inputStream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static class Output {
+        private byte[] buf;
+        private int count;
+
+        private Output(int initialCapacity) {
+            this.buf = new byte[initialCapacity];
+        }
+
+        private void ensureCapacity(int increment) {
+            if (count + increment > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + increment));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            buf[count++] = (byte) value;
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                buf[count++] = (byte) (value >>> i);
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        private void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int position;
+
+        private Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private void require(int length) throws IOException {
+            if (length < 0 || position + length > buf.length) {
+                throw new EOFException("truncated task data");
+            }
+        }
+
+        private byte readByte() throws IOException {
+            require(1);
+            return buf[position++];
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        private long readLong() throws IOException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buf[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = (int) readVarLong();
+            require(length);
+            byte[] bytes = Arrays.copyOfRange(buf, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        private String readString() throws IOException {
+            int length = (int) readVarLong();
+            require(length);
+            String value = new String(buf, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
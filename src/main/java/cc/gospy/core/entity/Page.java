@@ -16,7 +16,10 @@
 
 package cc.gospy.core.entity;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,6 +29,7 @@ public class Page implements Serializable {
     private int statusCode;
     private long responseTime;
     private String contentType;
+    private boolean notModified;
     private Map<String, Object> extra = new HashMap<>();
 
     public Task getTask() {
@@ -44,6 +48,19 @@ public class Page implements Serializable {
         this.content = content;
     }
 
+    // read-only views of the content, neither copies it
+    public ByteBuffer getContentAsByteBuffer() {
+        return ByteBuffer.wrap(content != null ? content : new byte[0]).asReadOnlyBuffer();
+    }
+
+    public InputStream getContentAsStream() {
+        return new ByteArrayInputStream(content != null ? content : new byte[0]);
+    }
+
+    public int getContentLength() {
+        return content != null ? content.length : 0;
+    }
+
     public int getStatusCode() {
         return statusCode;
     }
@@ -68,6 +85,15 @@ public class Page implements Serializable {
         this.contentType = contentType;
     }
 
+    // true if the page has not changed since the last visit of its task, see RevisitStore
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    public void setNotModified(boolean notModified) {
+        this.notModified = notModified;
+    }
+
     public Map<String, Object> getExtra() {
         return extra;
     }
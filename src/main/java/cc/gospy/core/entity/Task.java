@@ -16,25 +16,65 @@
 
 package cc.gospy.core.entity;
 
+import com.google.common.collect.Interner;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.nio.charset.Charset;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 public class Task implements Serializable, Comparable<Task> {
+    // the uid of the original class, tasks serialized by it (queue files, remote nodes) stay readable
+    private static final long serialVersionUID = -6113711364621832479L;
     private static final Logger logger = LoggerFactory.getLogger(Task.class);
 
     // identify a unique task for duplicate remover
     public static final Funnel<Task> DIGEST = (task, primitiveSink) -> {
         primitiveSink.putString(task.url, Charset.defaultCharset());
-        task.extra.forEach((k, v) -> primitiveSink.putString(k.concat("=").concat(v.toString().concat("\1")), Charset.defaultCharset()));
+        // in key order, the iteration order of a hash map depends on its capacity
+        Map<String, Object> extra = task.extra.size() > 1 ? new TreeMap<>(task.extra) : task.extra;
+        extra.forEach((k, v) -> primitiveSink.putString(k.concat("=").concat(digestOf(v).concat("\1")), Charset.defaultCharset()));
     };
 
+    // bumped whenever DIGEST changes, as every fingerprint changes with it. files keyed by
+    // fingerprints (bloom filters, fingerprint tables, revisit stores, checkpoint logs) carry
+    // it and refuse to load under another version instead of silently missing every task.
+    // 1: extra in iteration order, values by toString
+    // 2: extra in key order, nested maps and sets in key order unless they keep insertion order
+    public static final int DIGEST_VERSION = 2;
+
+    // toString of the value, except that unordered maps and sets are written in a fixed order,
+    // so the digest does not depend on their capacity or on how they were copied or decoded
+    private static String digestOf(Object value) {
+        if (value instanceof Map) {
+            List<String> entries = new ArrayList<>();
+            ((Map<?, ?>) value).forEach((k, v) -> entries.add(digestOf(k).concat("=").concat(digestOf(v))));
+            if (!(value instanceof LinkedHashMap)) {
+                Collections.sort(entries);
+            }
+            return "{" + String.join(", ", entries) + "}";
+        }
+        if (value instanceof Set) {
+            List<String> elements = new ArrayList<>();
+            ((Set<?>) value).forEach(element -> elements.add(digestOf(element)));
+            if (!(value instanceof LinkedHashSet)) {
+                Collections.sort(elements);
+            }
+            return "[" + String.join(", ", elements) + "]";
+        }
+        if (value instanceof List) {
+            List<String> elements = new ArrayList<>();
+            ((List<?>) value).forEach(element -> elements.add(digestOf(element)));
+            return "[" + String.join(", ", elements) + "]";
+        }
+        return String.valueOf(value);
+    }
+
     private byte priority;
     private String url;
     private String host;
@@ -46,6 +86,7 @@ public class Task implements Serializable, Comparable<Task> {
     private int depth;
     private int expectedVisitInSeconds; // 0 to off
     private int visitCount;
+    private transient volatile long fingerprint; // 0 if not computed yet
 
     public Task(String url) {
         this(Priority.MEDIUM, url, 0, 0);
@@ -63,7 +104,7 @@ public class Task implements Serializable, Comparable<Task> {
         this.createTimeMillis = System.currentTimeMillis();
         this.lastVisitTimeMillis = createTimeMillis;
         this.expectedVisitInSeconds = expectedVisitInSeconds;
-        this.extra = new HashMap<>();
+        this.extra = new Extra();
         this.resolveUrl();
     }
 
@@ -82,6 +123,7 @@ public class Task implements Serializable, Comparable<Task> {
     public void setUrl(String newUrl) {
         this.url = newUrl;
         this.resolveUrl();
+        this.fingerprint = 0;
     }
 
     public void addVisitCount() {
@@ -108,14 +150,40 @@ public class Task implements Serializable, Comparable<Task> {
         this.lastVisitTimeMillis = lastVisitTimeMillis;
     }
 
+    // the map is copied, so that changes on it can invalidate the fingerprint
     public void setExtra(Map<String, Object> extra) {
-        this.extra = extra;
+        this.extra = extra != null ? new Extra(extra) : new Extra();
+        this.fingerprint = 0;
+    }
+
+    // extra is written as a plain hash map (see Extra.writeReplace), wrap it again on the way back
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        setExtra(extra);
     }
 
     public void setSkipCheck(boolean skipCheck) {
         this.skipCheck = skipCheck;
     }
 
+    void setCreateTimeMillis(long createTimeMillis) {
+        this.createTimeMillis = createTimeMillis;
+    }
+
+    void setVisitCount(int visitCount) {
+        this.visitCount = visitCount;
+    }
+
+    // share host and protocol strings among decoded tasks
+    void intern(Interner<String> interner) {
+        if (host != null) {
+            host = interner.intern(host);
+        }
+        if (protocol != null) {
+            protocol = interner.intern(protocol);
+        }
+    }
+
     public byte getPriority() {
         return priority;
     }
@@ -168,16 +236,32 @@ public class Task implements Serializable, Comparable<Task> {
         return this.getPriority() - task.getPriority();
     }
 
+    // 64-bit murmur3 digest of url and extra, computed once and reset by setUrl, setExtra
+    // or any change through getExtra() and its views. note that changes inside the values of extra
+    // (e.g. a nested header map) are not tracked once the fingerprint is computed.
+    public long getFingerprint() {
+        long fingerprint = this.fingerprint;
+        if (fingerprint == 0) {
+            fingerprint = Hashing.murmur3_128().hashObject(this, DIGEST).asLong();
+            if (fingerprint == 0) {
+                fingerprint = 1; // zero is reserved for "not computed"
+            }
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        return this.hashCode() == o.hashCode();
+        return this.getFingerprint() == ((Task) o).getFingerprint();
     }
 
     @Override
     public int hashCode() {
-        return Hashing.murmur3_32().newHasher().putObject(this, DIGEST).hash().hashCode();
+        long fingerprint = getFingerprint();
+        return (int) (fingerprint ^ (fingerprint >>> 32));
     }
 
     @Override
@@ -185,6 +269,117 @@ public class Task implements Serializable, Comparable<Task> {
         return "Task-(" + priority + ")-[" + url + "]";
     }
 
+    // every mutator, including those of the views, their iterators and entries, resets the
+    // fingerprint after the change, so that a digest computed meanwhile is not kept. the default methods of map (compute, merge, replaceAll, ...) are built on
+    // get, put, remove and entry.setValue, so they are covered as well.
+    private class Extra extends AbstractMap<String, Object> implements Serializable {
+        private final HashMap<String, Object> map;
+        private transient Set<Entry<String, Object>> entrySet;
+
+        private Extra() {
+            this.map = new HashMap<>();
+        }
+
+        private Extra(Map<String, Object> extra) {
+            this.map = new HashMap<>(extra);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public Object get(Object key) {
+            return map.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object previous = map.put(key, value);
+            fingerprint = 0;
+            return previous;
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> m) {
+            map.putAll(m);
+            fingerprint = 0;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Object previous = map.remove(key);
+            fingerprint = 0;
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+            fingerprint = 0;
+        }
+
+        // keeps the serialized form of the original class, whose extra was a hash map
+        private Object writeReplace() {
+            return new HashMap<>(map);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            Set<Entry<String, Object>> entrySet = this.entrySet;
+            return entrySet != null ? entrySet : (this.entrySet = new EntrySet());
+        }
+
+        private class EntrySet extends AbstractSet<Entry<String, Object>> {
+            @Override
+            public int size() {
+                return map.size();
+            }
+
+            @Override
+            public void clear() {
+                Extra.this.clear();
+            }
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                Iterator<Entry<String, Object>> iterator = map.entrySet().iterator();
+                return new Iterator<Entry<String, Object>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        Entry<String, Object> entry = iterator.next();
+                        return new SimpleEntry<String, Object>(entry) {
+                            @Override
+                            public Object setValue(Object value) {
+                                super.setValue(value);
+                                Object previous = entry.setValue(value);
+                                fingerprint = 0;
+                                return previous;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        fingerprint = 0;
+                    }
+                };
+            }
+        }
+    }
+
     public enum Priority {
         EMERGENCY(0), HIGH(10), MEDIUM(20), LOW(30);
 
@@ -194,7 +389,7 @@ public class Task implements Serializable, Comparable<Task> {
             this.value = (byte) value;
         }
 
-        byte getValue() {
+        public byte getValue() {
             return value;
         }
     }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.fetcher;
+
+import cc.gospy.core.entity.Page;
+import cc.gospy.core.entity.Task;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+// fetchers which send requests without holding a thread until the response arrives
+public interface AsyncFetcher extends Fetcher {
+    // the response is turned into a page on the executor, and the future is completed there
+    // (unless the executor rejects it), so the io threads are never held by the page work
+    CompletableFuture<Page> fetchAsync(Task task, Executor executor);
+
+    default CompletableFuture<Page> fetchAsync(Task task) {
+        return fetchAsync(task, ForkJoinPool.commonPool());
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Map;
 
 public class Fetchers {
     public static HttpFetcher HttpFetcher;
+    public static AsyncHttpFetcher AsyncHttpFetcher;
     public static FileFetcher FileFetcher;
     public static PhantomJSFetcher PhantomJSFetcher;
     public static SeleniumFetcher SeleniumFetcher;
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.fetcher.dns;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.InetAddresses;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// caches the lookups of a delegate resolver (the jvm's by default), failed lookups are
+// cached for a shorter while. concurrent lookups of a host wait for one another, lookups
+// of different hosts run in parallel, and prefetch(host) resolves in the background so
+// that a later resolve(host) is answered from the cache.
+public class CachingDnsResolver implements DnsResolver, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    private DnsResolver delegate = SystemDefaultDnsResolver.INSTANCE;
+    private long maxSize = 10000;
+    private long ttlMillis = TimeUnit.SECONDS.toMillis(60);
+    private long negativeTtlMillis = TimeUnit.SECONDS.toMillis(10);
+    private int prefetchThreads = 8;
+    private int maxPendingPrefetches = 1024;
+
+    private Cache<String, Entry> cache;
+    private ThreadPoolExecutor prefetcher;
+    private Set<String> pendingPrefetches;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    private CachingDnsResolver() {
+    }
+
+    private void init() {
+        cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+        AtomicInteger threadCount = new AtomicInteger();
+        prefetcher = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 60, TimeUnit.SECONDS
+                , new LinkedBlockingQueue<>(maxPendingPrefetches), runnable -> {
+            Thread thread = new Thread(runnable, "dns-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        prefetcher.allowCoreThreadTimeOut(true);
+        pendingPrefetches = ConcurrentHashMap.newKeySet();
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static CachingDnsResolver getDefault() {
+        return new Builder().build();
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (InetAddresses.isInetAddress(host)) {
+            return delegate.resolve(host); // a literal, nothing to look up
+        }
+        Entry entry = lookup(host);
+        if (entry.exception != null) {
+            throw entry.exception;
+        }
+        return entry.addresses.clone();
+    }
+
+    // resolve the host in the background, unless it is cached or already being resolved
+    public void prefetch(String host) {
+        if (host == null || host.isEmpty() || InetAddresses.isInetAddress(host)) {
+            return;
+        }
+        Entry entry = cache.getIfPresent(host);
+        if (entry != null && !entry.isExpired()) {
+            return;
+        }
+        if (pendingPrefetches.add(host)) {
+            try {
+                prefetcher.execute(() -> {
+                    try {
+                        lookup(host);
+                    } finally {
+                        pendingPrefetches.remove(host);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingPrefetches.remove(host); // too many pending or closed, prefetching is only a hint
+            }
+        }
+    }
+
+    private Entry lookup(String host) {
+        Entry entry = cache.getIfPresent(host);
+        if (entry != null) {
+            if (!entry.isExpired()) {
+                hitCount.increment();
+                return entry;
+            }
+            cache.asMap().remove(host, entry);
+        }
+        try {
+            // the loader runs once for concurrent callers of the same host
+            return cache.get(host, () -> load(host));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // load() does not throw
+        }
+    }
+
+    private Entry load(String host) {
+        missCount.increment();
+        try {
+            InetAddress[] addresses = delegate.resolve(host);
+            if (addresses == null || addresses.length == 0) {
+                throw new UnknownHostException(host);
+            }
+            return new Entry(addresses, null, System.currentTimeMillis() + ttlMillis);
+        } catch (UnknownHostException e) {
+            logger.debug("Lookup of {} failed: {}", host, e.getMessage());
+            return new Entry(null, e, System.currentTimeMillis() + negativeTtlMillis);
+        }
+    }
+
+    public void invalidate(String host) {
+        cache.invalidate(host);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public void close() {
+        prefetcher.shutdownNow();
+    }
+
+    private static class Entry {
+        private final InetAddress[] addresses;
+        private final UnknownHostException exception;
+        private final long expireTimeMillis;
+
+        private Entry(InetAddress[] addresses, UnknownHostException exception, long expireTimeMillis) {
+            this.addresses = addresses;
+            this.exception = exception;
+            this.expireTimeMillis = expireTimeMillis;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expireTimeMillis;
+        }
+    }
+
+    public static class Builder {
+        private CachingDnsResolver resolver;
+
+        private Builder() {
+            resolver = new CachingDnsResolver();
+        }
+
+        // e.g. a stub resolver in tests
+        public Builder setDelegate(DnsResolver delegate) {
+            resolver.delegate = delegate;
+            return this;
+        }
+
+        public Builder setMaxSize(long maxSize) {
+            resolver.maxSize = maxSize;
+            return this;
+        }
+
+        public Builder setTtlSeconds(int ttlSeconds) {
+            resolver.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+            return this;
+        }
+
+        public Builder setNegativeTtlSeconds(int negativeTtlSeconds) {
+            resolver.negativeTtlMillis = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+            return this;
+        }
+
+        public Builder setPrefetchThreads(int prefetchThreads) {
+            resolver.prefetchThreads = prefetchThreads;
+            return this;
+        }
+
+        // further prefetches are dropped while this many are waiting
+        public Builder setMaxPendingPrefetches(int maxPendingPrefetches) {
+            resolver.maxPendingPrefetches = maxPendingPrefetches;
+            return this;
+        }
+
+        public CachingDnsResolver build() {
+            resolver.init();
+            return resolver;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.fetcher.impl;
+
+import cc.gospy.core.entity.Page;
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.fetcher.AsyncFetcher;
+import cc.gospy.core.fetcher.FetchException;
+import cc.gospy.core.fetcher.UserAgent;
+import cc.gospy.core.fetcher.impl.HttpFetcher.AfterFetch;
+import cc.gospy.core.fetcher.impl.HttpFetcher.BeforeFetch;
+import cc.gospy.core.fetcher.revisit.RevisitStore;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+
+// non-blocking http fetcher, a handful of io threads can keep thousands of requests in flight
+public class AsyncHttpFetcher implements AsyncFetcher, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncHttpFetcher.class);
+
+    private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+    private int maxConnCount = 2000;
+    private int maxConnPerRoute = 20;
+    private String userAgent = UserAgent.Default;
+    private ResponseLimit responseLimit = ResponseLimit.UNLIMITED;
+    private RevisitStore revisitStore;
+    private boolean contentCompression = true;
+    private DnsResolver dnsResolver; // the jvm's if null
+    private BeforeFetch requestHandler;
+    private AfterFetch responseHandler;
+    private PoolingNHttpClientConnectionManager connectionManager;
+    private CloseableHttpAsyncClient client;
+
+    private AsyncHttpFetcher() {
+        this.requestHandler = HttpFetcher.DEFAULT_REQUEST_HANDLER;
+        this.responseHandler = HttpFetcher.DEFAULT_RESPONSE_HANDLER;
+    }
+
+    private void init() throws IOReactorException, KeyManagementException, NoSuchAlgorithmException {
+        connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.custom().setIoThreadCount(ioThreadCount).build()),
+                RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", new SSLIOSessionStrategy(HttpFetcher.getWeakenedSSLContextInstance()))
+                        .build(), dnsResolver
+        );
+        connectionManager.setMaxTotal(maxConnCount);
+        connectionManager.setDefaultMaxPerRoute(maxConnPerRoute);
+        client = HttpAsyncClients.custom().setConnectionManager(connectionManager).build();
+        client.start();
+        logger.info("Async http client started. [ioThreads={}, maxConn={}]", ioThreadCount, maxConnCount);
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static AsyncHttpFetcher getDefault() {
+        return new Builder().build();
+    }
+
+    @Override
+    public CompletableFuture<Page> fetchAsync(Task task, Executor executor) {
+        CompletableFuture<Page> future = new CompletableFuture<>();
+        HttpRequestBase request;
+        RevisitStore.Record revisit;
+        try {
+            request = HttpFetcher.newRequest(task, requestHandler, userAgent);
+            if (contentCompression && !request.containsHeader("Accept-Encoding")) {
+                request.setHeader("Accept-Encoding", ContentEncoding.ACCEPT_ENCODING);
+            }
+            revisit = HttpFetcher.getRevisit(revisitStore, task, request); // throws once the store is closed
+        } catch (Throwable throwable) {
+            future.completeExceptionally(new FetchException(throwable.getMessage(), throwable));
+            return future;
+        }
+        final long timer = System.currentTimeMillis();
+        client.execute(HttpAsyncMethods.create(request), responseLimit.newAsyncConsumer(), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                // the async client has already buffered the whole entity here, decoding it, the
+                // handler and the revisit store are left to the executor to keep this io thread free
+                long responseTime = System.currentTimeMillis() - timer;
+                complete(future, executor, () -> {
+                    BufferedHttpResponse buffered = new BufferedHttpResponse(response);
+                    ContentEncoding.DecodedEntity decoded = ContentEncoding.decode(buffered);
+                    responseLimit.apply(buffered); // on the decoded body
+                    Page page = responseHandler.handle(buffered);
+                    if (page != null) {
+                        page.setResponseTime(responseTime);
+                        task.addVisitCount();
+                        page.setTask(task);
+                        ContentEncoding.putBodySizes(page, decoded);
+                        HttpFetcher.putRevisit(revisitStore, task, request, revisit, response, page);
+                    }
+                    return page;
+                });
+            }
+
+            @Override
+            public void failed(Exception e) {
+                complete(future, executor, () -> {
+                    throw e;
+                });
+            }
+
+            @Override
+            public void cancelled() {
+                complete(future, executor, () -> {
+                    throw new FetchException("request cancelled: " + task.getUrl());
+                });
+            }
+        });
+        return future;
+    }
+
+    private static void complete(CompletableFuture<Page> future, Executor executor, Callable<Page> callable) {
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(callable.call());
+                } catch (FetchException e) {
+                    future.completeExceptionally(e);
+                } catch (Throwable throwable) {
+                    future.completeExceptionally(new FetchException(throwable.getMessage(), throwable));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new FetchException(e.getMessage(), e)); // the consumer is stopping
+        }
+    }
+
+    @Override
+    public Page fetch(Task task) throws FetchException {
+        try {
+            return fetchAsync(task).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FetchException) {
+                throw (FetchException) e.getCause();
+            }
+            throw new FetchException(e.getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            throw new FetchException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String[] getAcceptedProtocols() {
+        return new String[]{null, "http", "https"};
+    }
+
+    @Override
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        logger.info("Async http client stopped.");
+    }
+
+    // adapts a buffered async response to the AfterFetch handlers shared with HttpFetcher
+    private static class BufferedHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        private BufferedHttpResponse(HttpResponse response) {
+            super(response.getStatusLine());
+            setHeaders(response.getAllHeaders());
+            setEntity(response.getEntity());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static class Builder {
+        private AsyncHttpFetcher fetcher;
+
+        private Builder() {
+            fetcher = new AsyncHttpFetcher();
+        }
+
+        public Builder before(BeforeFetch requestHandler) {
+            fetcher.requestHandler = requestHandler;
+            return this;
+        }
+
+        public Builder after(AfterFetch responseHandler) {
+            fetcher.responseHandler = responseHandler;
+            return this;
+        }
+
+        public Builder setIoThreadCount(int ioThreadCount) {
+            fetcher.ioThreadCount = ioThreadCount;
+            return this;
+        }
+
+        public Builder setMaxConnCount(int maxConnCount) {
+            fetcher.maxConnCount = maxConnCount;
+            return this;
+        }
+
+        public Builder setMaxConnPerRoute(int maxConnPerRoute) {
+            fetcher.maxConnPerRoute = maxConnPerRoute;
+            return this;
+        }
+
+        public Builder setUserAgent(String userAgent) {
+            fetcher.userAgent = userAgent;
+            return this;
+        }
+
+        // sends Accept-Encoding: gzip, deflate, br (default), encoded bodies are decoded either way
+        public Builder setContentCompression(boolean contentCompression) {
+            fetcher.contentCompression = contentCompression;
+            return this;
+        }
+
+        // recrawled tasks (expected visit > 0) are fetched with conditional requests
+        // resolved on the io threads, a caching resolver keeps lookups from stalling them
+        public Builder setDnsResolver(DnsResolver dnsResolver) {
+            fetcher.dnsResolver = dnsResolver;
+            return this;
+        }
+
+        public Builder setRevisitStore(RevisitStore revisitStore) {
+            fetcher.revisitStore = revisitStore;
+            return this;
+        }
+
+        // larger bodies fail the fetch while they are still being received
+        public Builder setMaxBodySize(long maxBodySize) {
+            fetcher.responseLimit = fetcher.responseLimit.withMaxBodySize(maxBodySize);
+            return this;
+        }
+
+        // e.g. "text/html", "text/*", other responses fail the fetch before their body is read
+        public Builder setAcceptedContentTypes(String... contentTypes) {
+            fetcher.responseLimit = fetcher.responseLimit.withAcceptedContentTypes(contentTypes);
+            return this;
+        }
+
+        public AsyncHttpFetcher build() {
+            try {
+                fetcher.init();
+            } catch (IOReactorException | KeyManagementException | NoSuchAlgorithmException e) {
+                e.printStackTrace();
+            }
+            return fetcher;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.fetcher.impl;
+
+import cc.gospy.core.entity.Page;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.brotli.dec.BrotliInputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+// decodes compressed response bodies while they are read, and counts the bytes
+// that came over the wire.
+class ContentEncoding {
+    static final String ACCEPT_ENCODING = "gzip, deflate, br";
+
+    // replaces the entity of an encoded response, returns null if it is not encoded
+    // or the coding is unknown.
+    static DecodedEntity decode(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        Header header = entity != null ? entity.getContentEncoding() : null;
+        if (header == null) {
+            return null;
+        }
+        String coding = header.getValue().trim().toLowerCase();
+        if (!coding.equals("gzip") && !coding.equals("x-gzip") && !coding.equals("deflate") && !coding.equals("br")) {
+            return null;
+        }
+        DecodedEntity decoded = new DecodedEntity(entity, coding);
+        response.setEntity(decoded);
+        response.removeHeaders("Content-Length");
+        response.removeHeaders("Content-Encoding");
+        return decoded;
+    }
+
+    // body sizes before and after decoding, in bytes
+    static void putBodySizes(Page page, DecodedEntity decoded) {
+        page.getExtra().put("wireSize", decoded != null ? decoded.getWireLength() : (long) page.getContentLength());
+        page.getExtra().put("decodedSize", (long) page.getContentLength());
+        if (decoded != null) {
+            page.getExtra().put("contentEncoding", decoded.getCoding());
+        }
+    }
+
+    static class DecodedEntity extends HttpEntityWrapper {
+        private final String coding;
+        private long wireLength;
+
+        private DecodedEntity(HttpEntity entity, String coding) {
+            super(entity);
+            this.coding = coding;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream content = super.getContent();
+            if (content == null) {
+                return null;
+            }
+            InputStream wire = new FilterInputStream(content) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        wireLength++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        wireLength += n;
+                    }
+                    return n;
+                }
+            };
+            InputStream decoder;
+            switch (coding) {
+                case "br":
+                    decoder = new BrotliInputStream(wire);
+                    break;
+                case "deflate":
+                    decoder = new DeflateInputStream(wire); // zlib wrapped or raw
+                    break;
+                default:
+                    decoder = new GZIPInputStream(wire, 8192);
+            }
+            return decoder;
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            try (InputStream content = getContent()) {
+                if (content == null) {
+                    return;
+                }
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = content.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, n);
+                }
+            }
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        String getCoding() {
+            return coding;
+        }
+
+        long getWireLength() {
+            return wireLength;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.fetcher.impl;
+
+import cc.gospy.core.entity.Page;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+
+import java.nio.charset.StandardCharsets;
+
+// the content type of a page rendered by a browser. the browser knows it from the
+// navigation response (document.contentType), otherwise it is guessed from the leading
+// characters of the page source, which is serialized markup in almost every case.
+final class ContentSniffer {
+    private static final int SNIFF_LENGTH = 512;
+
+    private ContentSniffer() {
+    }
+
+    // the type the browser received, null if it cannot tell (e.g. javascript is disabled)
+    static String getBrowserContentType(WebDriver webDriver) {
+        if (!(webDriver instanceof JavascriptExecutor)) {
+            return null;
+        }
+        try {
+            Object contentType = ((JavascriptExecutor) webDriver).executeScript("return document.contentType;");
+            return contentType instanceof String && !((String) contentType).isEmpty() ? (String) contentType : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    static String sniff(String source) {
+        int from = 0, length = source.length();
+        while (from < length && (Character.isWhitespace(source.charAt(from)) || source.charAt(from) == '\uFEFF')) {
+            from++;
+        }
+        if (from == length) {
+            return "text/plain";
+        }
+        int to = Math.min(length, from + SNIFF_LENGTH);
+        switch (source.charAt(from)) {
+            case '<':
+                if (source.startsWith("<?xml", from)) {
+                    if (indexOfIgnoreCase(source, "<html", from, to) != -1) {
+                        return "application/xhtml+xml";
+                    }
+                    if (indexOfIgnoreCase(source, "<rss", from, to) != -1) {
+                        return "application/rss+xml";
+                    }
+                    if (indexOfIgnoreCase(source, "<feed", from, to) != -1) {
+                        return "application/atom+xml";
+                    }
+                    return "application/xml";
+                }
+                return "text/html";
+            case '{':
+            case '[':
+                return "application/json";
+            case '%':
+                if (source.startsWith("%PDF-", from)) {
+                    return "application/pdf";
+                }
+                break;
+        }
+        return "text/plain";
+    }
+
+    private static int indexOfIgnoreCase(String source, String target, int from, int to) {
+        for (int i = from; i + target.length() <= to; i++) {
+            if (source.regionMatches(true, i, target, 0, target.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // the source is encoded as utf-8, and the charset is passed to the processors
+    static void setContent(Page page, String source, String contentType) {
+        page.setContent(source.getBytes(StandardCharsets.UTF_8));
+        page.setContentType(contentType);
+        page.getExtra().put("Content-Type", contentType + "; charset=UTF-8");
+    }
+}
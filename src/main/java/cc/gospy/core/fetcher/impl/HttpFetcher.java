@@ -21,6 +21,8 @@ import cc.gospy.core.entity.Task;
 import cc.gospy.core.fetcher.FetchException;
 import cc.gospy.core.fetcher.Fetcher;
 import cc.gospy.core.fetcher.UserAgent;
+import cc.gospy.core.fetcher.revisit.RevisitStore;
+import com.google.common.hash.Hashing;
 import org.apache.http.*;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.config.RequestConfig;
@@ -29,13 +31,19 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
@@ -46,9 +54,9 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
@@ -65,45 +73,109 @@ public class HttpFetcher implements Fetcher, Closeable {
 
     private int maxConnCount = 200;
     private int maxConnPerRoute = 20;
+    private boolean adaptiveConnPerRoute = false;
+    private int minAdaptiveConnPerRoute;
+    private int maxAdaptiveConnPerRoute;
     private int cleanPeriodSeconds = 30;
     private int connExpireSeconds = 10;
     private boolean autoKeepAlive = true;
     private boolean useProxy = false;
     private InetSocketAddress proxyAddress = new InetSocketAddress("localhost", 1080);
     private String userAgent = UserAgent.Default;
+    private ResponseLimit responseLimit = ResponseLimit.UNLIMITED;
+    private RevisitStore revisitStore;
+    private boolean contentCompression = true;
+    private DnsResolver dnsResolver; // the jvm's if null
 
     public static void setTimeout(int timeout) {
         HttpFetcher._TIMEOUT = timeout;
     }
 
-    private HttpFetcher() {
-        this(
-                request -> request.setConfig(RequestConfig.custom()
-                        .setRedirectsEnabled(true)
-                        .setRelativeRedirectsAllowed(true)
-                        .setCircularRedirectsAllowed(true)
-                        .setConnectionRequestTimeout(_TIMEOUT)
-                        .setConnectTimeout(_TIMEOUT)
-                        .setSocketTimeout(_TIMEOUT).build())
-                , response -> {
-                    Page page = new Page();
-                    ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
-                    page.setStatusCode(response.getStatusLine().getStatusCode());
-                    HttpEntity entity = response.getEntity();
-                    String contentType;
-                    if (entity.getContentType() != null && !(contentType = entity.getContentType().getValue()).equals("")) {
-                        page.setContentType(contentType.indexOf(';') != -1 ? contentType.substring(0, contentType.indexOf(';')) : contentType);
-                    }
-                    entity.writeTo(responseBody);
-                    page.setContent(responseBody.toByteArray());
-                    Map<String, Object> responseHeader = new HashMap<>();
-                    for (Header header : response.getAllHeaders()) {
-                        responseHeader.put(header.getName(), header.getValue());
-                    }
-                    page.getExtra().put("responseHeader", responseHeader);
-                    return page;
+    static final BeforeFetch DEFAULT_REQUEST_HANDLER = request -> request.setConfig(RequestConfig.custom()
+            .setRedirectsEnabled(true)
+            .setRelativeRedirectsAllowed(true)
+            .setCircularRedirectsAllowed(true)
+            .setConnectionRequestTimeout(_TIMEOUT)
+            .setConnectTimeout(_TIMEOUT)
+            .setSocketTimeout(_TIMEOUT).build());
+
+    static final AfterFetch DEFAULT_RESPONSE_HANDLER = response -> {
+        Page page = new Page();
+        page.setStatusCode(response.getStatusLine().getStatusCode());
+        HttpEntity entity = response.getEntity();
+        String contentType;
+        if (entity != null && entity.getContentType() != null && !(contentType = entity.getContentType().getValue()).equals("")) {
+            page.setContentType(contentType.indexOf(';') != -1 ? contentType.substring(0, contentType.indexOf(';')) : contentType);
+        }
+        page.setContent(readBody(entity));
+        Map<String, Object> responseHeader = new HashMap<>();
+        for (Header header : response.getAllHeaders()) {
+            responseHeader.put(header.getName(), header.getValue());
+        }
+        page.getExtra().put("responseHeader", responseHeader);
+        return page;
+    };
+
+    private static final int SCRATCH_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_SCRATCH_SIZE = 1024 * 1024;
+    private static final int MAX_PREALLOCATED_SIZE = 1024 * 1024; // content-length is not trusted beyond that
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    // reads the body into an array of its exact size, a body of known length is read in place,
+    // others go through a reusable per-thread buffer and are copied once. a larger declared
+    // length only sizes the first buffer, which then grows as the bytes actually arrive.
+    static byte[] readBody(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return new byte[0];
+        }
+        try (InputStream content = entity.getContent()) {
+            if (content == null) {
+                return new byte[0];
+            }
+            long length = entity.getContentLength();
+            if (length > MAX_PREALLOCATED_SIZE) {
+                return readRemaining(content, new byte[MAX_PREALLOCATED_SIZE], 0);
+            }
+            if (length >= 0) {
+                byte[] bytes = new byte[(int) length];
+                int n = 0, r;
+                while (n < bytes.length && (r = content.read(bytes, n, bytes.length - n)) != -1) {
+                    n += r;
+                }
+                if (n < bytes.length) {
+                    return Arrays.copyOf(bytes, n); // ended early
                 }
-        );
+                if ((r = content.read()) == -1) {
+                    return bytes;
+                }
+                // longer than declared, go on below
+                byte[] buffer = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytes.length + SCRATCH_SIZE));
+                buffer[n++] = (byte) r;
+                return readRemaining(content, buffer, n);
+            }
+            return readRemaining(content, scratch.get(), 0);
+        }
+    }
+
+    private static byte[] readRemaining(InputStream content, byte[] buffer, int n) throws IOException {
+        int r;
+        while ((r = content.read(buffer, n, buffer.length - n)) != -1) {
+            n += r;
+            if (n == buffer.length) {
+                if (buffer.length >= Integer.MAX_VALUE - 8) {
+                    throw new IOException("response body exceeds the max array size");
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, Integer.MAX_VALUE - 8));
+            }
+        }
+        if (buffer.length <= MAX_POOLED_SCRATCH_SIZE && buffer.length > scratch.get().length) {
+            scratch.set(buffer); // keep the grown buffer, but not the huge ones
+        }
+        return Arrays.copyOf(buffer, n);
+    }
+
+    private HttpFetcher() {
+        this(DEFAULT_REQUEST_HANDLER, DEFAULT_RESPONSE_HANDLER);
     }
 
     private HttpFetcher(BeforeFetch configurator, AfterFetch responseHandler) {
@@ -117,24 +189,25 @@ public class HttpFetcher implements Fetcher, Closeable {
                     .<ConnectionSocketFactory>create()
                     .register("http", new ProxyPlainConnectionSocketFactory())
                     .register("https", new ProxySSLConnectionSocketFactory(getWeakenedSSLContextInstance()))
-                    .build()
+                    .build(), dnsResolver
             );
         } else {
             connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder
                     .<ConnectionSocketFactory>create()
                     .register("http", PlainConnectionSocketFactory.INSTANCE)
                     .register("https", new SSLConnectionSocketFactory(getWeakenedSSLContextInstance()))
-                    .build()
+                    .build(), dnsResolver
             );
         }
-        if (autoKeepAlive) {
-            ((PoolingHttpClientConnectionManager) connectionManager).setMaxTotal(maxConnCount);
-            ((PoolingHttpClientConnectionManager) connectionManager).setDefaultMaxPerRoute(maxConnPerRoute);
-            client = getHttpClientInstance();
-            cleanerThread = new PoolingHttpClientConnectionCleaner(connectionManager, connExpireSeconds);
-            cleanerThread.setDaemon(true);
-            cleanerThread.start();
-        }
+        // without keep-alive the pool only bounds the open connections, they are never reused
+        ((PoolingHttpClientConnectionManager) connectionManager).setMaxTotal(maxConnCount);
+        ((PoolingHttpClientConnectionManager) connectionManager).setDefaultMaxPerRoute(maxConnPerRoute);
+        routeMonitor = new RouteMonitor((PoolingHttpClientConnectionManager) connectionManager, maxConnPerRoute
+                , adaptiveConnPerRoute, minAdaptiveConnPerRoute, maxAdaptiveConnPerRoute);
+        client = getHttpClientInstance();
+        cleanerThread = new PoolingHttpClientConnectionCleaner(connectionManager, connExpireSeconds);
+        cleanerThread.setDaemon(true);
+        cleanerThread.start();
     }
 
     public static Builder custom() {
@@ -195,10 +268,18 @@ public class HttpFetcher implements Fetcher, Closeable {
 
     private CloseableHttpClient getHttpClientInstance() {
         HttpRequestRetryHandler handler = (e, i, httpContext) -> i < 2 && e instanceof NoHttpResponseException;
-        return HttpClients.custom().setConnectionManager(connectionManager).setRetryHandler(handler).build();
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setRetryHandler(handler)
+                .setRequestExecutor(RouteMonitor.newRequestExecutor())
+                .disableContentCompression(); // see ContentEncoding
+        if (!autoKeepAlive) {
+            builder.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE);
+        }
+        return builder.build();
     }
 
-    private SSLContext getWeakenedSSLContextInstance() throws NoSuchAlgorithmException, KeyManagementException {
+    static SSLContext getWeakenedSSLContextInstance() throws NoSuchAlgorithmException, KeyManagementException {
         SSLContext context = SSLContext.getInstance("SSLv3");
         context.init(null, new TrustManager[]{new X509TrustManager() {
             public void checkClientTrusted(
@@ -223,7 +304,26 @@ public class HttpFetcher implements Fetcher, Closeable {
 
     private CloseableHttpClient client;
 
-    private CloseableHttpResponse doGet(String url, String cookie, Map<String, String> header) throws IOException {
+    // build a request from task.extra, which might contain "cookies" (or "cookie"), "headers" and "post"
+    static HttpRequestBase newRequest(Task task, BeforeFetch requestHandler, String userAgent) throws IOException {
+        Map<String, Object> extra = task.getExtra();
+        Object obj;
+        String cookies = null;
+        if ((obj = extra.get("cookies")) != null && obj instanceof Map) {
+            cookies = getCookieString((Map) obj);
+        } else if ((obj = extra.get("cookie")) != null && obj instanceof String) {
+            cookies = obj.toString();
+        }
+        Map<String, String> headers = null;
+        if ((obj = extra.get("headers")) != null && obj instanceof Map) {
+            headers = (Map) obj;
+        }
+        return (extra.get("post") != null) ?
+                newPost(task.getUrl(), cookies, headers, (Map) extra.get("post"), requestHandler, userAgent) :
+                newGet(task.getUrl(), cookies, headers, requestHandler, userAgent);
+    }
+
+    private static HttpGet newGet(String url, String cookie, Map<String, String> header, BeforeFetch requestHandler, String userAgent) {
         HttpGet request = new HttpGet(url);
         requestHandler.handle(request);
         request.setHeader("User-Agent", userAgent);
@@ -231,10 +331,10 @@ public class HttpFetcher implements Fetcher, Closeable {
             request.setHeader("Cookie", cookie);
         }
         setRequestHeader(request, header);
-        return client.execute(request);
+        return request;
     }
 
-    private CloseableHttpResponse doPost(String url, String cookie, Map<String, String> header, Map<String, String> attributes) throws IOException {
+    private static HttpPost newPost(String url, String cookie, Map<String, String> header, Map<String, String> attributes, BeforeFetch requestHandler, String userAgent) throws IOException {
         HttpPost request = new HttpPost(url);
         requestHandler.handle(request);
         request.setHeader("User-Agent", userAgent);
@@ -245,10 +345,52 @@ public class HttpFetcher implements Fetcher, Closeable {
         List<NameValuePair> pairs = new ArrayList<>();
         attributes.keySet().forEach(key -> pairs.add(new BasicNameValuePair(key, attributes.get(key))));
         request.setEntity(new UrlEncodedFormEntity(pairs));
-        return client.execute(request);
+        return request;
+    }
+
+    // the validators of the last visit, only recrawled gets are conditional
+    static RevisitStore.Record getRevisit(RevisitStore revisitStore, Task task, HttpRequestBase request) {
+        if (revisitStore == null || task.getExpectedVisitInSeconds() <= 0 || !(request instanceof HttpGet)) {
+            return null;
+        }
+        RevisitStore.Record record = revisitStore.get(task.getFingerprint());
+        if (record != null) {
+            if (record.getEtag() != null) {
+                request.setHeader("If-None-Match", record.getEtag());
+            }
+            if (record.getLastModifiedMillis() > 0) {
+                request.setHeader("If-Modified-Since", DateUtils.formatDate(new Date(record.getLastModifiedMillis())));
+            }
+        }
+        return record;
+    }
+
+    // marks the page as not modified on a 304 or an unchanged body, and keeps the new validators
+    static void putRevisit(RevisitStore revisitStore, Task task, HttpRequestBase request, RevisitStore.Record last,
+                           HttpResponse response, Page page) {
+        if (revisitStore == null || task.getExpectedVisitInSeconds() <= 0 || !(request instanceof HttpGet)) {
+            return;
+        }
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            page.setNotModified(true);
+            return;
+        }
+        if (statusCode != HttpStatus.SC_OK || page.getContent() == null) {
+            return;
+        }
+        long contentHash = Hashing.murmur3_128().hashBytes(page.getContent()).asLong();
+        page.setNotModified(last != null && last.getContentHash() == contentHash);
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        Date lastModifiedDate = lastModified != null ? DateUtils.parseDate(lastModified.getValue()) : null;
+        revisitStore.put(task.getFingerprint(), new RevisitStore.Record(
+                etag != null ? etag.getValue() : null,
+                lastModifiedDate != null ? lastModifiedDate.getTime() : 0,
+                contentHash));
     }
 
-    private void setRequestHeader(HttpRequestBase request, Map<String, String> header) {
+    private static void setRequestHeader(HttpRequestBase request, Map<String, String> header) {
         if (header != null) {
             for (Map.Entry<String, String> entry : header.entrySet()) {
                 request.setHeader(entry.getKey(), entry.getValue());
@@ -256,7 +398,7 @@ public class HttpFetcher implements Fetcher, Closeable {
         }
     }
 
-    private String getCookieString(Map cookies) {
+    private static String getCookieString(Map cookies) {
         if (cookies != null) {
             StringBuilder builder = new StringBuilder();
             Iterator<Map.Entry<String, String>> iterator = cookies.entrySet().iterator();
@@ -286,43 +428,51 @@ public class HttpFetcher implements Fetcher, Closeable {
     @Override
     public Page fetch(Task task) throws FetchException {
         try {
-            if (!autoKeepAlive) {
-                this.init();
-                client = getHttpClientInstance();
-            }
             CloseableHttpResponse response;
-            Map<String, Object> extra = task.getExtra();
 
             // send request
-            long timer = System.currentTimeMillis();
-            String url = task.getUrl();
-            Object obj;
-            String cookies = null;
-            if ((obj = extra.get("cookies")) != null && obj instanceof Map) {
-                cookies = getCookieString((Map) obj);
-            } else if ((obj = extra.get("cookie")) != null && obj instanceof String) {
-                cookies = obj.toString();
+            HttpRequestBase request = newRequest(task, requestHandler, userAgent);
+            if (contentCompression && !request.containsHeader("Accept-Encoding")) {
+                request.setHeader("Accept-Encoding", ContentEncoding.ACCEPT_ENCODING);
             }
-            Map<String, String> headers = null;
-            if ((obj = extra.get("headers")) != null && obj instanceof Map) {
-                headers = (Map) obj;
+            RevisitStore.Record revisit = getRevisit(revisitStore, task, request);
+            HttpClientContext context = HttpClientContext.create();
+            if (!autoKeepAlive) {
+                // as isolated as a client of its own, no cookies are carried over from other tasks
+                request.setHeader("Connection", "close");
+                context.setCookieStore(new BasicCookieStore());
+            }
+            long timer = System.currentTimeMillis();
+            try {
+                response = client.execute(request, context);
+            } catch (IOException e) {
+                if (routeMonitor != null) {
+                    routeMonitor.record(context, System.currentTimeMillis() - timer, true);
+                }
+                throw e;
             }
-            response = (extra.get("post") != null) ?
-                    doPost(url, cookies, headers, (Map) extra.get("post")) :
-                    doGet(url, cookies, headers);
             timer = System.currentTimeMillis() - timer;
+            if (routeMonitor != null) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                routeMonitor.record(context, timer, statusCode >= 500 || statusCode == 429);
+            }
 
             // load page
-            Page page = responseHandler.handle(response);
+            Page page;
+            ContentEncoding.DecodedEntity decoded;
+            try {
+                decoded = ContentEncoding.decode(response);
+                responseLimit.apply(response); // on the decoded body
+                page = responseHandler.handle(response);
+            } finally {
+                response.close(); // an aborted body closes the connection instead of draining it
+            }
             if (page != null) {
                 page.setResponseTime(timer);
                 task.addVisitCount();
                 page.setTask(task);
-            }
-            response.close();
-
-            if (!autoKeepAlive) {
-                client.close();
+                ContentEncoding.putBodySizes(page, decoded);
+                putRevisit(revisitStore, task, request, revisit, response, page);
             }
             return page;
         } catch (Throwable throwable) {
@@ -340,7 +490,13 @@ public class HttpFetcher implements Fetcher, Closeable {
         return userAgent;
     }
 
+    // connection pool and reuse metrics per route
+    public RouteMonitor getRouteMonitor() {
+        return routeMonitor;
+    }
+
     private HttpClientConnectionManager connectionManager;
+    private RouteMonitor routeMonitor;
     private PoolingHttpClientConnectionCleaner cleanerThread;
 
     protected class PoolingHttpClientConnectionCleaner extends Thread {
@@ -356,12 +512,17 @@ public class HttpFetcher implements Fetcher, Closeable {
 
         @Override
         public void run() {
+            // the route monitor ticks on the same thread, idle connections are checked as often
+            long periodMillis = TimeUnit.SECONDS.toMillis(Math.min(cleanPeriodSeconds, RouteMonitor.TICK_SECONDS));
             while (running) {
                 synchronized (this) {
                     try {
-                        wait(TimeUnit.SECONDS.toMillis(cleanPeriodSeconds));
+                        wait(periodMillis);
                         connectionManager.closeExpiredConnections();
                         connectionManager.closeIdleConnections(expireSeconds, TimeUnit.SECONDS);
+                        if (routeMonitor != null) {
+                            routeMonitor.tick();
+                        }
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
@@ -384,7 +545,7 @@ public class HttpFetcher implements Fetcher, Closeable {
 
     @Override
     public void close() {
-        if (autoKeepAlive) {
+        if (cleanerThread != null) {
             cleanerThread.shutdown();
         }
     }
@@ -416,6 +577,15 @@ public class HttpFetcher implements Fetcher, Closeable {
             return this;
         }
 
+        // let the limit of each route float between the bounds, driven by its latency, error rate
+        // and waiting requests. the total stays bounded by the max conn count.
+        public Builder setAdaptiveConnPerRoute(int minConnPerRoute, int maxConnPerRoute) {
+            fetcher.adaptiveConnPerRoute = true;
+            fetcher.minAdaptiveConnPerRoute = minConnPerRoute;
+            fetcher.maxAdaptiveConnPerRoute = maxConnPerRoute;
+            return this;
+        }
+
         public Builder setCleanPeriodSeconds(int cleanPeriodSeconds) {
             fetcher.cleanPeriodSeconds = cleanPeriodSeconds;
             return this;
@@ -426,6 +596,7 @@ public class HttpFetcher implements Fetcher, Closeable {
             return this;
         }
 
+        // if false, every request is sent with "Connection: close" and a cookie store of its own
         public Builder setAutoKeepAlive(boolean autoKeepAlive) {
             fetcher.autoKeepAlive = autoKeepAlive;
             return this;
@@ -442,6 +613,36 @@ public class HttpFetcher implements Fetcher, Closeable {
             return this;
         }
 
+        // larger bodies fail the fetch as soon as they are known to be larger
+        public Builder setMaxBodySize(long maxBodySize) {
+            fetcher.responseLimit = fetcher.responseLimit.withMaxBodySize(maxBodySize);
+            return this;
+        }
+
+        // e.g. "text/html", "text/*", other responses fail the fetch before their body is read
+        public Builder setAcceptedContentTypes(String... contentTypes) {
+            fetcher.responseLimit = fetcher.responseLimit.withAcceptedContentTypes(contentTypes);
+            return this;
+        }
+
+        // sends Accept-Encoding: gzip, deflate, br (default), encoded bodies are decoded either way
+        public Builder setContentCompression(boolean contentCompression) {
+            fetcher.contentCompression = contentCompression;
+            return this;
+        }
+
+        // recrawled tasks (expected visit > 0) are fetched with conditional requests
+        public Builder setRevisitStore(RevisitStore revisitStore) {
+            fetcher.revisitStore = revisitStore;
+            return this;
+        }
+
+        // e.g. a CachingDnsResolver, which can be shared with the scheduler to prefetch hosts
+        public Builder setDnsResolver(DnsResolver dnsResolver) {
+            fetcher.dnsResolver = dnsResolver;
+            return this;
+        }
+
         public HttpFetcher build() {
             try {
                 fetcher.init();
@@ -21,8 +21,7 @@ import cc.gospy.core.entity.Task;
 import cc.gospy.core.fetcher.FetchException;
 import cc.gospy.core.fetcher.Fetcher;
 import cc.gospy.core.fetcher.UserAgent;
-import net.sf.jmimemagic.Magic;
-import net.sf.jmimemagic.MagicMatch;
+import cc.gospy.core.util.webdriver.WebDriverPool;
 import org.openqa.selenium.Cookie;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.phantomjs.PhantomJSDriver;
@@ -32,20 +31,20 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
-// for ajax rendered pages
+// for ajax rendered pages, each fetch leases a driver of its own
 public class PhantomJSFetcher implements Fetcher, Closeable {
-    private WebDriver webDriver;
+    private WebDriverPool webDriverPool;
+    private boolean ownsWebDriverPool; // a pool passed in by the user is closed by the user
+    private long leaseTimeoutMillis;
+    private boolean contentTypeFromBrowser;
     private String userAgent;
     private Collection<Cookie> cookies;
 
-    private PhantomJSFetcher(String phantomJsBinaryPath, int timeout, boolean loadImages, String userAgent, Collection<Cookie> cookies) {
-        System.setProperty("phantomjs.binary.path", phantomJsBinaryPath);
-        DesiredCapabilities capabilities = DesiredCapabilities.phantomjs();
-        capabilities.setCapability("phantomjs.page.settings.resourceTimeout", timeout);
-        capabilities.setCapability("phantomjs.page.settings.loadImages", loadImages);
-        capabilities.setCapability("phantomjs.page.settings.userAgent", userAgent);
-        this.webDriver = new PhantomJSDriver(capabilities);
+    private PhantomJSFetcher(WebDriverPool webDriverPool, long leaseTimeoutMillis, String userAgent, Collection<Cookie> cookies) {
+        this.webDriverPool = webDriverPool;
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
         this.userAgent = userAgent;
         this.cookies = cookies;
     }
@@ -61,21 +60,29 @@ public class PhantomJSFetcher implements Fetcher, Closeable {
                 task.setUrl(task.getUrl().substring("phantomjs://".length()));
             }
             Page page = new Page();
-            long timer = System.currentTimeMillis();
-            if (cookies.size() > 0) {
-                cookies.forEach(cookie -> webDriver.manage().addCookie(cookie));
+            String source, contentType = null;
+            WebDriver webDriver = webDriverPool.lease(leaseTimeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                long timer = System.currentTimeMillis();
+                if (cookies.size() > 0) {
+                    cookies.forEach(cookie -> webDriver.manage().addCookie(cookie));
+                }
+                webDriver.get(task.getUrl());
+                source = webDriver.getPageSource();
+                if (contentTypeFromBrowser) {
+                    contentType = ContentSniffer.getBrowserContentType(webDriver);
+                }
+                page.setResponseTime(System.currentTimeMillis() - timer);
+            } catch (Throwable throwable) {
+                webDriverPool.releaseAfterFailure(webDriver);
+                throw throwable;
             }
-            webDriver.get(task.getUrl());
-            byte[] bytes = webDriver.getPageSource().getBytes();
-            page.setResponseTime(System.currentTimeMillis() - timer);
+            webDriverPool.release(webDriver);
             task.addVisitCount();
             page.setTask(task);
-            page.setContent(bytes);
-            // webDriver cannot get content-type form selenium :(
-            // see https://github.com/seleniumhq/selenium-google-code-issue-archive/issues/141#issuecomment-191404952
-            // using magic-match is a compromise, which might cause efficiency problems.
-            MagicMatch match = Magic.getMagicMatch(bytes);
-            page.setContentType(match.getMimeType());
+            // selenium does not expose the response headers, see
+            // https://github.com/seleniumhq/selenium-google-code-issue-archive/issues/141#issuecomment-191404952
+            ContentSniffer.setContent(page, source, contentType != null ? contentType : ContentSniffer.sniff(source));
             return page;
         } catch (Throwable throwable) {
             throw new FetchException(throwable.getMessage(), throwable);
@@ -94,8 +101,9 @@ public class PhantomJSFetcher implements Fetcher, Closeable {
 
     @Override
     public void close() throws IOException {
-        webDriver.close();
-        webDriver.quit();
+        if (ownsWebDriverPool) {
+            webDriverPool.close();
+        }
     }
 
     public static class Builder {
@@ -104,6 +112,11 @@ public class PhantomJSFetcher implements Fetcher, Closeable {
         private boolean loadImages = false;
         private String userAgent = UserAgent.Default;
         private Collection<Cookie> cookies = new ArrayList<>();
+        private WebDriverPool webDriverPool;
+        private int poolSize = 1;
+        private int maxPagesPerDriver = 1000;
+        private long leaseTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+        private boolean contentTypeFromBrowser = false;
 
         public Builder setPhantomJsBinaryPath(String phantomJsBinaryPath) {
             path = phantomJsBinaryPath;
@@ -130,8 +143,57 @@ public class PhantomJSFetcher implements Fetcher, Closeable {
             return this;
         }
 
+        // phantomjs processes rendering in parallel, all started on build
+        public Builder setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        // quit and replace a process after this many pages, 0 to never recycle
+        public Builder setMaxPagesPerDriver(int maxPagesPerDriver) {
+            this.maxPagesPerDriver = maxPagesPerDriver;
+            return this;
+        }
+
+        // ask the browser for document.contentType (needs javascript), the page source is sniffed otherwise
+        public Builder setContentTypeFromBrowser(boolean contentTypeFromBrowser) {
+            this.contentTypeFromBrowser = contentTypeFromBrowser;
+            return this;
+        }
+
+        // a fetch fails if no driver is returned in time
+        public Builder setLeaseTimeoutMillis(long leaseTimeoutMillis) {
+            this.leaseTimeoutMillis = leaseTimeoutMillis;
+            return this;
+        }
+
+        // use a pool of your own (e.g. of phantomjs drivers with other capabilities), instead of
+        // setPhantomJsBinaryPath/setTimeout/setLoadImages/setPoolSize/setMaxPagesPerDriver.
+        // it is left open when the fetcher is closed, so it can be shared between fetchers
+        public Builder setWebDriverPool(WebDriverPool webDriverPool) {
+            this.webDriverPool = webDriverPool;
+            return this;
+        }
+
+        private WebDriverPool newWebDriverPool() {
+            System.setProperty("phantomjs.binary.path", path);
+            DesiredCapabilities capabilities = DesiredCapabilities.phantomjs();
+            capabilities.setCapability("phantomjs.page.settings.resourceTimeout", timeout);
+            capabilities.setCapability("phantomjs.page.settings.loadImages", loadImages);
+            capabilities.setCapability("phantomjs.page.settings.userAgent", userAgent);
+            return WebDriverPool.custom()
+                    .setDriverFactory(() -> new PhantomJSDriver(capabilities))
+                    .setSize(poolSize)
+                    .setMaxPagesPerDriver(maxPagesPerDriver)
+                    .build();
+        }
+
         public PhantomJSFetcher build() {
-            return new PhantomJSFetcher(path, timeout, loadImages, userAgent, cookies);
+            WebDriverPool pool = webDriverPool != null ? webDriverPool : newWebDriverPool();
+            PhantomJSFetcher fetcher = new PhantomJSFetcher(pool, leaseTimeoutMillis, userAgent, cookies);
+            fetcher.contentTypeFromBrowser = contentTypeFromBrowser;
+            fetcher.ownsWebDriverPool = webDriverPool == null;
+            return fetcher;
         }
     }
 }
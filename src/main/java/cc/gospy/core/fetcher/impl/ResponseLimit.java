@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.fetcher.impl;
+
+import cc.gospy.core.fetcher.FetchException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentBufferEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// rejects responses of unwanted content types before their body is read, and aborts
+// bodies larger than the max size instead of buffering them.
+class ResponseLimit {
+    static final ResponseLimit UNLIMITED = new ResponseLimit(Long.MAX_VALUE, null);
+
+    private final long maxBodySize;
+    private final Set<String> acceptedContentTypes; // all if null, "type/*" matches a whole type
+
+    ResponseLimit(long maxBodySize, String[] acceptedContentTypes) {
+        if (maxBodySize < 0) {
+            throw new IllegalArgumentException("max body size must not be negative.");
+        }
+        this.maxBodySize = maxBodySize;
+        if (acceptedContentTypes != null) {
+            this.acceptedContentTypes = new LinkedHashSet<>();
+            for (String contentType : acceptedContentTypes) {
+                this.acceptedContentTypes.add(contentType.trim().toLowerCase());
+            }
+        } else {
+            this.acceptedContentTypes = null;
+        }
+    }
+
+    ResponseLimit withMaxBodySize(long maxBodySize) {
+        return new ResponseLimit(maxBodySize, toArray());
+    }
+
+    ResponseLimit withAcceptedContentTypes(String... acceptedContentTypes) {
+        return new ResponseLimit(maxBodySize, acceptedContentTypes);
+    }
+
+    private String[] toArray() {
+        return acceptedContentTypes != null ? acceptedContentTypes.toArray(new String[acceptedContentTypes.size()]) : null;
+    }
+
+    // checks the head of a blocking response and caps the stream of its entity
+    void apply(HttpResponse response) throws FetchException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        String violation = check(entity.getContentType() != null ? entity.getContentType().getValue() : null, entity.getContentLength());
+        if (violation != null) {
+            throw new FetchException(violation);
+        }
+        if (maxBodySize != Long.MAX_VALUE) {
+            response.setEntity(new BoundedEntity(entity));
+        }
+    }
+
+    private String check(String contentType, long contentLength) {
+        if (acceptedContentTypes != null && contentType != null && !isAccepted(contentType)) {
+            return "content type " + contentType + " is not accepted";
+        }
+        if (contentLength > maxBodySize) {
+            return "response body of " + contentLength + " bytes exceeds " + maxBodySize + " bytes";
+        }
+        return null;
+    }
+
+    private boolean isAccepted(String contentType) {
+        int end = contentType.indexOf(';');
+        String mimeType = (end != -1 ? contentType.substring(0, end) : contentType).trim().toLowerCase();
+        int slash = mimeType.indexOf('/');
+        return acceptedContentTypes.contains(mimeType)
+                || slash != -1 && acceptedContentTypes.contains(mimeType.substring(0, slash + 1).concat("*"));
+    }
+
+    private IOException exceeded() {
+        return new IOException("response body exceeds " + maxBodySize + " bytes");
+    }
+
+    // the async client buffers the body in the io thread, so the limit is applied there
+    HttpAsyncResponseConsumer<HttpResponse> newAsyncConsumer() {
+        return new AbstractAsyncResponseConsumer<HttpResponse>() {
+            private volatile HttpResponse response;
+            private volatile SimpleInputBuffer buffer;
+
+            @Override
+            protected void onResponseReceived(HttpResponse response) {
+                this.response = response;
+            }
+
+            @Override
+            protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+                String violation = check(contentType != null ? contentType.toString() : null, entity.getContentLength());
+                if (violation != null) {
+                    throw new IOException(violation);
+                }
+                long length = entity.getContentLength();
+                buffer = new SimpleInputBuffer(length > 0 && length < Integer.MAX_VALUE ? (int) length : 4096, HeapByteBufferAllocator.INSTANCE);
+                response.setEntity(new ContentBufferEntity(entity, buffer));
+            }
+
+            @Override
+            protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+                buffer.consumeContent(decoder);
+                if (buffer.length() > maxBodySize) {
+                    throw exceeded();
+                }
+            }
+
+            @Override
+            protected HttpResponse buildResult(HttpContext context) {
+                return response;
+            }
+
+            @Override
+            protected void releaseResources() {
+                response = null;
+                buffer = null;
+            }
+        };
+    }
+
+    private class BoundedEntity extends HttpEntityWrapper {
+        private BoundedEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream content = super.getContent();
+            return content == null ? null : new FilterInputStream(content) {
+                private long count;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1 && ++count > maxBodySize) {
+                        throw exceeded();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0 && (count += n) > maxBodySize) {
+                        throw exceeded();
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            try (InputStream content = getContent()) {
+                if (content == null) {
+                    return;
+                }
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = content.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.fetcher.impl;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// per-route connection metrics of a pooling manager. when adaptive, the limit of each
+// route is tuned on every tick: raised while its requests wait for a connection, halved
+// when its error rate or latency goes up, and reset once the route has gone cold.
+public class RouteMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(RouteMonitor.class);
+
+    static final int TICK_SECONDS = 5;
+    private static final String REUSED = "gospy.connection.reused";
+    private static final int MIN_SAMPLES = 5; // per tick, before a route is slowed down
+    private static final double MAX_ERROR_RATE = 0.2;
+    private static final double MAX_LATENCY_FACTOR = 2.0; // of the long-run mean
+    private static final int COLD_TICKS = 12;
+
+    private final PoolingHttpClientConnectionManager manager;
+    private final Map<HttpRoute, Route> routes;
+    private final Route total; // cumulative, cold routes are dropped from routes
+    private final int defaultMaxPerRoute;
+    private final boolean adaptive;
+    private final int minPerRoute;
+    private final int maxPerRoute;
+
+    RouteMonitor(PoolingHttpClientConnectionManager manager, int defaultMaxPerRoute,
+                 boolean adaptive, int minPerRoute, int maxPerRoute) {
+        if (adaptive && (minPerRoute < 1 || minPerRoute > maxPerRoute)) {
+            throw new IllegalArgumentException("illegal route limits [" + minPerRoute + ", " + maxPerRoute + "]");
+        }
+        this.manager = manager;
+        this.routes = new ConcurrentHashMap<>();
+        this.total = new Route();
+        this.defaultMaxPerRoute = defaultMaxPerRoute;
+        this.adaptive = adaptive;
+        this.minPerRoute = minPerRoute;
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    // marks in the context whether the request went out on a kept-alive connection
+    static HttpRequestExecutor newRequestExecutor() {
+        return new HttpRequestExecutor() {
+            @Override
+            public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                    throws IOException, HttpException {
+                context.setAttribute(REUSED, conn.getMetrics().getRequestCount() > 0);
+                return super.execute(request, conn, context);
+            }
+        };
+    }
+
+    void record(HttpClientContext context, long latencyMillis, boolean failed) {
+        HttpRoute route = context.getAttribute(HttpClientContext.HTTP_ROUTE, HttpRoute.class);
+        if (route == null) {
+            return; // failed before a route was planned
+        }
+        boolean reused = Boolean.TRUE.equals(context.getAttribute(REUSED));
+        routes.computeIfAbsent(route, r -> new Route()).add(latencyMillis, reused, failed);
+        total.add(latencyMillis, reused, failed);
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    // called by the connection cleaner every TICK_SECONDS
+    void tick() {
+        for (Map.Entry<HttpRoute, Route> entry : routes.entrySet()) {
+            HttpRoute route = entry.getKey();
+            Route stats = entry.getValue();
+            long requests = stats.requests.sum();
+            long failures = stats.failures.sum();
+            long latencyMillis = stats.latencyMillis.sum();
+            long n = requests - stats.lastRequests;
+            double errorRate = n > 0 ? (double) (failures - stats.lastFailures) / n : 0;
+            double meanLatency = n > 0 ? (double) (latencyMillis - stats.lastLatencyMillis) / n : 0;
+            stats.lastRequests = requests;
+            stats.lastFailures = failures;
+            stats.lastLatencyMillis = latencyMillis;
+
+            if (n == 0) {
+                PoolStats pool = manager.getStats(route);
+                if (++stats.idleTicks >= COLD_TICKS && pool.getLeased() == 0 && pool.getPending() == 0) {
+                    routes.remove(route);
+                    if (adaptive && pool.getMax() != defaultMaxPerRoute) {
+                        manager.setMaxPerRoute(route, defaultMaxPerRoute);
+                    }
+                }
+                continue;
+            }
+            stats.idleTicks = 0;
+            if (adaptive) {
+                adjust(route, stats, n, errorRate, meanLatency);
+            }
+            stats.meanLatency = stats.meanLatency < 0 ? meanLatency : stats.meanLatency * 0.9 + meanLatency * 0.1;
+        }
+    }
+
+    private void adjust(HttpRoute route, Route stats, long n, double errorRate, double meanLatency) {
+        int max = manager.getMaxPerRoute(route);
+        int limit = max;
+        if (n >= MIN_SAMPLES && (errorRate > MAX_ERROR_RATE
+                || (stats.meanLatency > 0 && meanLatency > stats.meanLatency * MAX_LATENCY_FACTOR))) {
+            limit = Math.max(minPerRoute, max / 2);
+        } else if (manager.getStats(route).getPending() > 0) {
+            limit = Math.min(maxPerRoute, max + Math.max(1, max / 4));
+        } else if (max < minPerRoute) {
+            limit = minPerRoute;
+        }
+        if (limit != max) {
+            manager.setMaxPerRoute(route, limit);
+            logger.debug("Route limit of {} changed from {} to {} [errorRate={}, latency={}ms]",
+                    route.getTargetHost().toURI(), max, limit, errorRate, (long) meanLatency);
+        }
+    }
+
+    // keyed by the target, e.g. "https://example.com:443"
+    public Map<String, RouteMetrics> getRouteMetrics() {
+        Map<String, RouteMetrics> metrics = new LinkedHashMap<>();
+        routes.forEach((route, stats) -> metrics.put(route.getTargetHost().toURI(), stats.snapshot(manager.getStats(route))));
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    // since the monitor was created, including routes that have gone cold
+    public RouteMetrics getTotalMetrics() {
+        return total.snapshot(manager.getTotalStats());
+    }
+
+    private static class Route {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder reused = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder latencyMillis = new LongAdder();
+        // owned by the ticking thread
+        private long lastRequests;
+        private long lastFailures;
+        private long lastLatencyMillis;
+        private double meanLatency = -1;
+        private int idleTicks;
+
+        private void add(long latencyMillis, boolean reused, boolean failed) {
+            this.requests.increment();
+            this.latencyMillis.add(latencyMillis);
+            if (reused) {
+                this.reused.increment();
+            }
+            if (failed) {
+                this.failures.increment();
+            }
+        }
+
+        private RouteMetrics snapshot(PoolStats pool) {
+            return new RouteMetrics(pool.getLeased(), pool.getAvailable(), pool.getPending(), pool.getMax(),
+                    requests.sum(), reused.sum(), failures.sum(), latencyMillis.sum());
+        }
+    }
+
+    public static class RouteMetrics {
+        private final int leased;
+        private final int available;
+        private final int pending;
+        private final int max;
+        private final long requests;
+        private final long reused;
+        private final long failures;
+        private final long latencyMillis;
+
+        private RouteMetrics(int leased, int available, int pending, int max,
+                             long requests, long reused, long failures, long latencyMillis) {
+            this.leased = leased;
+            this.available = available;
+            this.pending = pending;
+            this.max = max;
+            this.requests = requests;
+            this.reused = reused;
+            this.failures = failures;
+            this.latencyMillis = latencyMillis;
+        }
+
+        public int getLeased() {
+            return leased;
+        }
+
+        public int getAvailable() {
+            return available;
+        }
+
+        public int getPending() {
+            return pending;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        // requests sent on a kept-alive connection
+        public long getReused() {
+            return reused;
+        }
+
+        public double getKeepAliveHitRatio() {
+            return requests > 0 ? (double) reused / requests : 0;
+        }
+
+        // io errors, 5xx and 429 responses
+        public double getErrorRate() {
+            return requests > 0 ? (double) failures / requests : 0;
+        }
+
+        public double getMeanLatencyMillis() {
+            return requests > 0 ? (double) latencyMillis / requests : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "RouteMetrics{" +
+                    "leased=" + leased +
+                    ", available=" + available +
+                    ", pending=" + pending +
+                    ", max=" + max +
+                    ", requests=" + requests +
+                    ", keepAliveHitRatio=" + String.format("%.3f", getKeepAliveHitRatio()) +
+                    ", errorRate=" + String.format("%.3f", getErrorRate()) +
+                    ", meanLatencyMillis=" + String.format("%.1f", getMeanLatencyMillis()) +
+                    '}';
+        }
+    }
+}
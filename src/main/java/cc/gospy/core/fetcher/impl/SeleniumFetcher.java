@@ -22,8 +22,7 @@ import cc.gospy.core.fetcher.FetchException;
 import cc.gospy.core.fetcher.Fetcher;
 import cc.gospy.core.fetcher.UserAgent;
 import cc.gospy.core.util.webdriver.Browser;
-import net.sf.jmimemagic.Magic;
-import net.sf.jmimemagic.MagicMatch;
+import cc.gospy.core.util.webdriver.WebDriverPool;
 import org.openqa.selenium.Cookie;
 import org.openqa.selenium.WebDriver;
 
@@ -31,22 +30,27 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
-// for ajax rendered pages and test flow visualization
+// for ajax rendered pages and test flow visualization, each fetch leases a driver of its own
 public class SeleniumFetcher implements Fetcher, Closeable {
 
-    private WebDriver webDriver;
+    private WebDriverPool webDriverPool;
+    private boolean ownsWebDriverPool; // a pool passed in by the user is closed by the user
+    private long leaseTimeoutMillis;
+    private boolean contentTypeFromBrowser;
     private String userAgent;
     private Collection<Cookie> cookies;
 
-    private SeleniumFetcher(Browser browser, String path, String userAgent, Collection<Cookie> cookies) {
-        this.webDriver = browser.init(path);
+    private SeleniumFetcher(WebDriverPool webDriverPool, long leaseTimeoutMillis, String userAgent, Collection<Cookie> cookies) {
+        this.webDriverPool = webDriverPool;
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
         this.userAgent = userAgent;
         this.cookies = cookies;
     }
 
     public static SeleniumFetcher getDefault() {
-        return new SeleniumFetcher(Browser.HtmlUnit, null, UserAgent.Default, new ArrayList<>());
+        return new Builder().build();
     }
 
     public static Builder custom() {
@@ -60,21 +64,29 @@ public class SeleniumFetcher implements Fetcher, Closeable {
                 task.setUrl(task.getUrl().substring("selenium://".length()));
             }
             Page page = new Page();
-            long timer = System.currentTimeMillis();
-            if (cookies.size() > 0) {
-                cookies.forEach(cookie -> webDriver.manage().addCookie(cookie));
+            String source, contentType = null;
+            WebDriver webDriver = webDriverPool.lease(leaseTimeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                long timer = System.currentTimeMillis();
+                if (cookies.size() > 0) {
+                    cookies.forEach(cookie -> webDriver.manage().addCookie(cookie));
+                }
+                webDriver.get(task.getUrl());
+                page.setResponseTime(System.currentTimeMillis() - timer);
+                source = webDriver.getPageSource();
+                if (contentTypeFromBrowser) {
+                    contentType = ContentSniffer.getBrowserContentType(webDriver);
+                }
+            } catch (Throwable throwable) {
+                webDriverPool.releaseAfterFailure(webDriver);
+                throw throwable;
             }
-            webDriver.get(task.getUrl());
+            webDriverPool.release(webDriver);
             task.addVisitCount();
             page.setTask(task);
-            page.setResponseTime(System.currentTimeMillis() - timer);
-            byte[] bytes = webDriver.getPageSource().getBytes();
-            page.setContent(bytes);
-            // we cannot get content-type form selenium :(
-            // see https://github.com/seleniumhq/selenium-google-code-issue-archive/issues/141#issuecomment-191404952
-            // using magic-match is a compromise.
-            MagicMatch match = Magic.getMagicMatch(bytes);
-            page.setContentType(match.getMimeType());
+            // selenium does not expose the response headers, see
+            // https://github.com/seleniumhq/selenium-google-code-issue-archive/issues/141#issuecomment-191404952
+            ContentSniffer.setContent(page, source, contentType != null ? contentType : ContentSniffer.sniff(source));
             return page;
         } catch (Throwable throwable) {
             throw new FetchException(throwable.getMessage(), throwable);
@@ -93,8 +105,9 @@ public class SeleniumFetcher implements Fetcher, Closeable {
 
     @Override
     public void close() throws IOException {
-        webDriver.close();
-        webDriver.quit();
+        if (ownsWebDriverPool) {
+            webDriverPool.close();
+        }
     }
 
     public static class Builder {
@@ -102,6 +115,11 @@ public class SeleniumFetcher implements Fetcher, Closeable {
         private String path = "/path/to/" + browser.name();
         private String userAgent = UserAgent.Default;
         private Collection<Cookie> cookies = new ArrayList<>();
+        private WebDriverPool webDriverPool;
+        private int poolSize = 1;
+        private int maxPagesPerDriver = 1000;
+        private long leaseTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+        private boolean contentTypeFromBrowser = false;
 
         public Builder setUserAgent(String userAgent) {
             this.userAgent = userAgent;
@@ -119,8 +137,47 @@ public class SeleniumFetcher implements Fetcher, Closeable {
             return this;
         }
 
+        // drivers rendering in parallel, a pool of the chosen browser is warmed up on build
+        public Builder setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        // quit and replace a driver after this many pages, 0 to never recycle
+        public Builder setMaxPagesPerDriver(int maxPagesPerDriver) {
+            this.maxPagesPerDriver = maxPagesPerDriver;
+            return this;
+        }
+
+        // ask the browser for document.contentType (needs javascript), the page source is sniffed otherwise
+        public Builder setContentTypeFromBrowser(boolean contentTypeFromBrowser) {
+            this.contentTypeFromBrowser = contentTypeFromBrowser;
+            return this;
+        }
+
+        // a fetch fails if no driver is returned in time
+        public Builder setLeaseTimeoutMillis(long leaseTimeoutMillis) {
+            this.leaseTimeoutMillis = leaseTimeoutMillis;
+            return this;
+        }
+
+        // use a pool of your own, instead of setDriver/setPoolSize/setMaxPagesPerDriver,
+        // it is left open when the fetcher is closed, so it can be shared between fetchers
+        public Builder setWebDriverPool(WebDriverPool webDriverPool) {
+            this.webDriverPool = webDriverPool;
+            return this;
+        }
+
         public SeleniumFetcher build() {
-            return new SeleniumFetcher(browser, path, userAgent, cookies);
+            WebDriverPool pool = webDriverPool != null ? webDriverPool : WebDriverPool.custom()
+                    .setDriver(browser, path)
+                    .setSize(poolSize)
+                    .setMaxPagesPerDriver(maxPagesPerDriver)
+                    .build();
+            SeleniumFetcher fetcher = new SeleniumFetcher(pool, leaseTimeoutMillis, userAgent, cookies);
+            fetcher.contentTypeFromBrowser = contentTypeFromBrowser;
+            fetcher.ownsWebDriverPool = webDriverPool == null;
+            return fetcher;
         }
 
     }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.fetcher.revisit;
+
+// validators of the last visit of a recrawled task, keyed by the task fingerprint. the
+// fetchers send them as a conditional request, and mark the page as not modified when
+// the server answers 304 or the content hashes the same as before.
+public interface RevisitStore {
+    Record get(long fingerprint);
+
+    void put(long fingerprint, Record record);
+
+    long size();
+
+    class Record {
+        private final String etag; // null if absent
+        private final long lastModifiedMillis; // 0 if absent
+        private final long contentHash;
+
+        public Record(String etag, long lastModifiedMillis, long contentHash) {
+            this.etag = etag;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.contentHash = contentHash;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getLastModifiedMillis() {
+            return lastModifiedMillis;
+        }
+
+        public long getContentHash() {
+            return contentHash;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{" +
+                    "etag='" + etag + '\'' +
+                    ", lastModifiedMillis=" + lastModifiedMillis +
+                    ", contentHash=" + contentHash +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.fetcher.revisit.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.fetcher.revisit.RevisitStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Cleaner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+
+// an open addressing table of fixed-size records in a memory-mapped file, so millions of
+// revisit records live off the heap and survive restarts. records are never removed.
+public class FileMappedRevisitStore implements RevisitStore, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FileMappedRevisitStore.class);
+
+    private static final int MAGIC = 0x67727673; // "grvs"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+    private static final int DIGEST_VERSION_OFFSET = 24; // of the fingerprints, see Task.DIGEST_VERSION
+
+    private static final int RECORD_SIZE = 128;
+    private static final int FINGERPRINT_OFFSET = 0; // 0 if the slot is free
+    private static final int HASH_OFFSET = 8;
+    private static final int LAST_MODIFIED_OFFSET = 16;
+    private static final int ETAG_LENGTH_OFFSET = 24;
+    private static final int ETAG_OFFSET = 26;
+    private static final int MAX_ETAG_LENGTH = RECORD_SIZE - ETAG_OFFSET;
+    private static final long SEGMENT_SIZE = 1L << 30; // a multiple of the record size
+    private static final double MAX_LOAD_FACTOR = 0.9;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long capacity; // power of two
+    private long count;
+    private boolean fullWarned;
+    private boolean closed; // guarded by this, like every access to the mapping
+
+    public FileMappedRevisitStore(String path, long expectedRecords) throws IOException {
+        this(new File(path), expectedRecords);
+    }
+
+    // open the store if the file exists, otherwise create it for the expected number of records
+    public FileMappedRevisitStore(File file, long expectedRecords) throws IOException {
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        if (!exists && file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (exists) {
+            if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException("not a revisit store file: " + file.getPath());
+            }
+            if (header.getInt(DIGEST_VERSION_OFFSET) != Task.DIGEST_VERSION) {
+                throw new IOException("revisit store file " + file.getPath() + " is keyed by task digest version "
+                        + header.getInt(DIGEST_VERSION_OFFSET) + ", expected " + Task.DIGEST_VERSION + ", delete it to start over");
+            }
+            this.capacity = header.getLong(CAPACITY_OFFSET);
+            this.count = header.getLong(COUNT_OFFSET);
+            logger.info("Revisit store [{}] is loaded. [records={}, capacity={}]", file.getPath(), count, capacity);
+        } else {
+            this.capacity = Long.highestOneBit(Math.max(16, (long) (expectedRecords / 0.75)) - 1) << 1;
+            this.count = 0;
+            header.putInt(MAGIC_OFFSET, MAGIC);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(COUNT_OFFSET, 0);
+            header.putInt(DIGEST_VERSION_OFFSET, Task.DIGEST_VERSION);
+            logger.info("Revisit store [{}] is created. [capacity={}]", file.getPath(), capacity);
+        }
+        long bytes = capacity * RECORD_SIZE;
+        int segmentCount = (int) ((bytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long offset = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + offset, Math.min(SEGMENT_SIZE, bytes - offset));
+        }
+    }
+
+    private static long mix(long fingerprint) {
+        fingerprint ^= fingerprint >>> 33;
+        fingerprint *= 0xff51afd7ed558ccdL;
+        fingerprint ^= fingerprint >>> 33;
+        return fingerprint;
+    }
+
+    private MappedByteBuffer segmentOf(long slot) {
+        return segments[(int) (slot * RECORD_SIZE / SEGMENT_SIZE)];
+    }
+
+    private int offsetOf(long slot) {
+        return (int) (slot * RECORD_SIZE % SEGMENT_SIZE);
+    }
+
+    // an access after unmap would crash the vm, the fetchers may still be finishing
+    // responses on their own threads when the store is closed
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("revisit store is closed: " + file.getPath());
+        }
+    }
+
+    // the slot holding the fingerprint, or the free slot where it would go
+    private long find(long fingerprint) {
+        long mask = capacity - 1;
+        long slot = mix(fingerprint) & mask;
+        long key;
+        while ((key = segmentOf(slot).getLong(offsetOf(slot) + FINGERPRINT_OFFSET)) != 0 && key != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @Override
+    public synchronized Record get(long fingerprint) {
+        ensureOpen();
+        if (fingerprint == 0) {
+            return null;
+        }
+        long slot = find(fingerprint);
+        MappedByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        if (segment.getLong(offset + FINGERPRINT_OFFSET) == 0) {
+            return null;
+        }
+        String etag = null;
+        int etagLength = segment.getShort(offset + ETAG_LENGTH_OFFSET);
+        if (etagLength > 0) {
+            byte[] bytes = new byte[etagLength];
+            for (int i = 0; i < etagLength; i++) {
+                bytes[i] = segment.get(offset + ETAG_OFFSET + i);
+            }
+            etag = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return new Record(etag, segment.getLong(offset + LAST_MODIFIED_OFFSET), segment.getLong(offset + HASH_OFFSET));
+    }
+
+    @Override
+    public synchronized void put(long fingerprint, Record record) {
+        ensureOpen();
+        if (fingerprint == 0) {
+            return;
+        }
+        long slot = find(fingerprint);
+        MappedByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        if (segment.getLong(offset + FINGERPRINT_OFFSET) == 0) {
+            if (count + 1 > capacity * MAX_LOAD_FACTOR) {
+                if (!fullWarned) {
+                    fullWarned = true;
+                    logger.warn("Revisit store [{}] is full, new records are dropped. [capacity={}]", file.getPath(), capacity);
+                }
+                return;
+            }
+            count++;
+            header.putLong(COUNT_OFFSET, count);
+        }
+        byte[] etag = record.getEtag() != null ? record.getEtag().getBytes(StandardCharsets.ISO_8859_1) : null;
+        int etagLength = etag != null && etag.length <= MAX_ETAG_LENGTH ? etag.length : 0; // too long to keep
+        segment.putLong(offset + HASH_OFFSET, record.getContentHash());
+        segment.putLong(offset + LAST_MODIFIED_OFFSET, record.getLastModifiedMillis());
+        segment.putShort(offset + ETAG_LENGTH_OFFSET, (short) etagLength);
+        for (int i = 0; i < etagLength; i++) {
+            segment.put(offset + ETAG_OFFSET + i, etag[i]);
+        }
+        segment.putLong(offset + FINGERPRINT_OFFSET, fingerprint);
+    }
+
+    @Override
+    public synchronized long size() {
+        return count;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // sync the records to disk
+    public synchronized void force() {
+        ensureOpen();
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        force();
+        closed = true;
+        unmap(header);
+        for (MappedByteBuffer segment : segments) {
+            unmap(segment);
+        }
+        channel.close();
+        randomAccessFile.close();
+        logger.info("Revisit store [{}] is closed.", file.getPath());
+    }
+
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            AccessController.doPrivileged((PrivilegedExceptionAction<Object>) () -> {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                ((Cleaner) cleaner.invoke(buffer)).clean();
+                return null;
+            });
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.processor;
+
+import cc.gospy.core.util.Experimental;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import us.codecraft.xsoup.XPathEvaluator;
+import us.codecraft.xsoup.Xsoup;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// what the @ExtractBy annotations of a page processor class ask for, resolved once per
+// class: field setters, compiled xpath evaluators and compiled patterns. the page is
+// parsed at most once and shared by all the fields.
+@Experimental
+public class ExtractionPlan {
+    private static final Map<Class<? extends PageProcessor>, ExtractionPlan> plans = new ConcurrentHashMap<>();
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private final MethodHandle constructor;
+    private final FieldPlan[] fieldPlans;
+    private boolean needsDocument;
+    private boolean needsText;
+
+    private ExtractionPlan(Class<? extends PageProcessor> clazz) throws ReflectiveOperationException {
+        Constructor<? extends PageProcessor> ctor = clazz.getDeclaredConstructor();
+        ctor.setAccessible(true);
+        this.constructor = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(PageProcessor.class));
+        List<FieldPlan> fieldPlans = new ArrayList<>();
+        for (Field field : clazz.getFields()) {
+            // in declaration order, results of an earlier annotation come first
+            List<Extractor> extractors = new ArrayList<>();
+            for (Annotation annotation : field.getAnnotations()) {
+                if (annotation.annotationType() == ExtractBy.XPath.class) {
+                    addXPath(extractors, (ExtractBy.XPath) annotation);
+                } else if (annotation.annotationType() == ExtractBy.XPaths.class) {
+                    for (ExtractBy.XPath a : ((ExtractBy.XPaths) annotation).value()) {
+                        addXPath(extractors, a);
+                    }
+                } else if (annotation.annotationType() == ExtractBy.Regex.class) {
+                    addRegex(extractors, (ExtractBy.Regex) annotation);
+                } else if (annotation.annotationType() == ExtractBy.Regexs.class) {
+                    for (ExtractBy.Regex a : ((ExtractBy.Regexs) annotation).value()) {
+                        addRegex(extractors, a);
+                    }
+                }
+            }
+            if (extractors.size() > 0) {
+                fieldPlans.add(new FieldPlan(field, extractors));
+            }
+        }
+        this.fieldPlans = fieldPlans.toArray(new FieldPlan[fieldPlans.size()]);
+    }
+
+    private void addXPath(List<Extractor> extractors, ExtractBy.XPath annotation) {
+        for (String xpath : annotation.value()) {
+            XPathEvaluator evaluator = Xsoup.compile(xpath);
+            extractors.add((document, text, results) -> results.addAll(evaluator.evaluate(document).list()));
+        }
+        needsDocument = true;
+    }
+
+    private void addRegex(List<Extractor> extractors, ExtractBy.Regex annotation) {
+        Pattern pattern = Pattern.compile(annotation.value());
+        int group = annotation.group();
+        extractors.add((document, text, results) -> {
+            Matcher matcher = pattern.matcher(text);
+            if (matcher.find()) {
+                results.add(matcher.group(group));
+            }
+        });
+        needsText = true;
+    }
+
+    public static ExtractionPlan of(Class<? extends PageProcessor> clazz) {
+        ExtractionPlan plan = plans.get(clazz);
+        if (plan == null) {
+            plan = plans.computeIfAbsent(clazz, key -> {
+                try {
+                    return new ExtractionPlan(key);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("cannot access page processor " + key.getName() + ": " + e.getMessage(), e);
+                }
+            });
+        }
+        return plan;
+    }
+
+    public PageProcessor newInstance() throws Exception {
+        try {
+            return (PageProcessor) constructor.invokeExact();
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable throwable) {
+            throw new RuntimeException(throwable);
+        }
+    }
+
+    // extracts the annotated fields of the processor from the content
+    public void apply(PageProcessor pageProcessor, byte[] content) throws Throwable {
+        String text = needsText || needsDocument ? new String(content) : null;
+        Document document = needsDocument ? Jsoup.parse(text) : null;
+        for (FieldPlan fieldPlan : fieldPlans) {
+            fieldPlan.apply(pageProcessor, document, text);
+        }
+    }
+
+    private interface Extractor {
+        void extract(Document document, String text, Set<String> results);
+    }
+
+    private static class FieldPlan {
+        private final Field field;
+        private final MethodHandle setter;
+        private final Extractor[] extractors;
+
+        FieldPlan(Field field, List<Extractor> extractors) throws IllegalAccessException {
+            field.setAccessible(true); // the declaring class may be non-public
+            this.field = field;
+            this.setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+            this.extractors = extractors.toArray(new Extractor[extractors.size()]);
+        }
+
+        void apply(Object pageProcessor, Document document, String text) throws Throwable {
+            Set<String> results = new LinkedHashSet<>();
+            for (Extractor extractor : extractors) {
+                extractor.extract(document, text, results);
+            }
+            if (results.size() > 0) {
+                setter.invokeExact(pageProcessor, convert(results));
+            }
+        }
+
+        private Object convert(Set<String> results) {
+            Class<?> type = field.getType();
+            if (type.isArray()) {
+                if (type.getComponentType().isPrimitive()) {
+                    throw new RuntimeException("We cannot cast a extracted result to a primitive type array, why not trying Object[]?");
+                }
+                Object[] src = results.toArray();
+                Object[] dst = (Object[]) Array.newInstance(type.getComponentType(), results.size());
+                for (int i = 0; i < dst.length; i++) {
+                    try {
+                        dst[i] = type.getComponentType().cast(src[i]);
+                    } catch (ClassCastException e) {
+                        throw new RuntimeException(e.getMessage() + ", please change your field:" + field.getName() + " to a castable type.");
+                    }
+                }
+                return dst;
+            } else if (Collection.class.isAssignableFrom(type)) {
+                return type.cast(results);
+            } else {
+                return type.cast(results.iterator().next());
+            }
+        }
+    }
+}
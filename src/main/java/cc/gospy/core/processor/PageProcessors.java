@@ -26,8 +26,9 @@ import java.util.Map;
 @Experimental
 public class PageProcessors {
     private Map<String, Class<? extends PageProcessor>> pageProcessors = new LinkedHashMap<>();
+    private volatile UrlRouter<Class<? extends PageProcessor>> router = new UrlRouter<>(pageProcessors);
 
-    public void register(Class<? extends PageProcessor> processorClazz) {
+    public synchronized void register(Class<? extends PageProcessor> processorClazz) {
         if (processorClazz == null) {
             throw new RuntimeException("page processor not declared, please check your code.");
         }
@@ -38,18 +39,19 @@ public class PageProcessors {
         if (!Modifier.isStatic(processorClazz.getModifiers())) {
             throw new RuntimeException("page processor should be static, please check your code.");
         }
+        ExtractionPlan.of(processorClazz); // resolve the annotations ahead of the first page
         for (String pattern : urlPattern.value()) {
             pageProcessors.put(pattern, processorClazz);
         }
+        router = new UrlRouter<>(pageProcessors);
     }
 
     public Class<? extends PageProcessor> get(String url) throws PageProcessorNotFoundException {
-        for (String pattern : pageProcessors.keySet()) {
-            if (url.matches(pattern)) {
-                return pageProcessors.get(pattern);
-            }
+        Class<? extends PageProcessor> processorClazz = router.route(url);
+        if (processorClazz == null) {
+            throw new PageProcessorNotFoundException(url);
         }
-        throw new PageProcessorNotFoundException(url);
+        return processorClazz;
     }
 
     public Collection<Class<? extends PageProcessor>> getAll() {
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.processor;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+// routes an url to the value of the first matching pattern in registration order. the
+// patterns are compiled once and indexed by their literal prefix in a trie, so a lookup
+// walks the url once and only tries the patterns whose prefix matched.
+class UrlRouter<T> {
+    static final char ANY = '\uFFFF'; // an unescaped dot in the prefix
+
+    private final Pattern[] patterns;
+    private final T[] values;
+    private final Node root;
+
+    @SuppressWarnings("unchecked")
+    UrlRouter(Map<String, T> routes) {
+        this.patterns = new Pattern[routes.size()];
+        this.values = (T[]) new Object[routes.size()];
+        this.root = new Node();
+        int index = 0;
+        for (Map.Entry<String, T> route : routes.entrySet()) {
+            patterns[index] = Pattern.compile(route.getKey());
+            values[index] = route.getValue();
+            Node node = root;
+            for (char c : literalPrefix(route.getKey()).toCharArray()) {
+                node = node.children.computeIfAbsent(c, k -> new Node());
+            }
+            node.routes.add(index++);
+        }
+    }
+
+    T route(String url) {
+        List<Integer> candidates = new ArrayList<>(root.routes);
+        List<Node> nodes = Collections.singletonList(root);
+        for (int i = 0; i < url.length() && !nodes.isEmpty(); i++) {
+            if (Character.isSurrogate(url.charAt(i))) {
+                return scan(url); // a dot matches the pair as a whole
+            }
+            List<Node> next = new ArrayList<>(2);
+            for (Node node : nodes) {
+                Node child = node.children.get(url.charAt(i));
+                if (child != null) {
+                    next.add(child);
+                    candidates.addAll(child.routes);
+                }
+                child = node.children.get(ANY);
+                if (child != null) {
+                    next.add(child);
+                    candidates.addAll(child.routes);
+                }
+            }
+            nodes = next;
+        }
+        Collections.sort(candidates); // first registered wins
+        for (int index : candidates) {
+            if (patterns[index].matcher(url).matches()) {
+                return values[index];
+            }
+        }
+        return null;
+    }
+
+    private T scan(String url) {
+        for (int index = 0; index < patterns.length; index++) {
+            if (patterns[index].matcher(url).matches()) {
+                return values[index];
+            }
+        }
+        return null;
+    }
+
+    // the text every match must start with, empty when it cannot be told safely
+    static String literalPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return ""; // alternation
+        }
+        StringBuilder prefix = new StringBuilder();
+        for (int i = regex.startsWith("^") ? 1 : 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    prefix.append(regex.charAt(++i)); // escaped literal, e.g. \.
+                    continue;
+                }
+                break; // character class or quoting, e.g. \d \Q
+            }
+            if (c == '?' || c == '*' || c == '{') {
+                prefix.setLength(Math.max(0, prefix.length() - 1)); // the last char is optional
+                break;
+            }
+            if ("[]()+^$".indexOf(c) >= 0) {
+                break;
+            }
+            prefix.append(c == '.' ? ANY : c);
+        }
+        return prefix.toString();
+    }
+
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        private final List<Integer> routes = new ArrayList<>(1);
+    }
+}
@@ -17,13 +17,13 @@
 package cc.gospy.core.remote.rabbitmq;
 
 import cc.gospy.core.entity.Task;
+import cc.gospy.core.entity.TaskCodec;
 import cc.gospy.core.remote.RemoteComponent;
 import cc.gospy.core.scheduler.Observable;
 import cc.gospy.core.scheduler.Recoverable;
 import cc.gospy.core.scheduler.Scheduler;
 import cc.gospy.core.scheduler.Verifiable;
 import com.rabbitmq.client.*;
-import org.apache.commons.lang3.SerializationUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +49,7 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
     private String[] targetQueueNames;
     private ScheduledExecutorService checker;
     private int timeoutInSeconds;
+    private TaskCodec codec;
 
     private final Map<Task, Long> tasks = new LinkedHashMap<>();
     private final Map<Task, Long> pendingTasks = new LinkedHashMap<>();
@@ -60,9 +61,10 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
     private long firstVisitTimeMillis;
 
     private RemoteScheduler(String host, int port, String virtualHost, String username, String password,
-                            int qos, int timeoutInSeconds, String... targetQueue) {
+                            int qos, int timeoutInSeconds, TaskCodec codec, String... targetQueue) {
         this.checker = new ScheduledThreadPoolExecutor(qos + 1);
         this.timeoutInSeconds = timeoutInSeconds;
+        this.codec = codec;
         try {
             this.factory = new ConnectionFactory();
             this.factory.setHost(host);
@@ -82,7 +84,7 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
     }
 
     public static RemoteScheduler getDefault() {
-        return new RemoteScheduler("localhost", -1, "/", "guest", "guest", 1, 10);
+        return new RemoteScheduler("localhost", -1, "/", "guest", "guest", 1, 10, TaskCodec.DEFAULT);
     }
 
     public static Builder custom() {
@@ -123,7 +125,7 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
                     if (isSuspend.get()) {
                         channel.basicNack(envelope.getDeliveryTag(), false, true);
                     }
-                    Task task = SerializationUtils.deserialize(body);
+                    Task task = codec.decode(body);
                     tasks.put(task, envelope.getDeliveryTag());
                     checker.schedule(() -> {
                         Task task0 = task;
@@ -192,7 +194,7 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
             return;
         }
         try {
-            channel.basicPublish("", NEW_TASK_QUEUE, MessageProperties.PERSISTENT_BASIC, SerializationUtils.serialize(task));
+            channel.basicPublish("", NEW_TASK_QUEUE, MessageProperties.PERSISTENT_BASIC, codec.encode(task));
             totalTaskInputCount.incrementAndGet();
         } catch (IOException e) {
             e.printStackTrace();
@@ -205,7 +207,7 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
             return;
         }
         try {
-            channel.basicPublish("", NEW_LAZY_TASK_QUEUE, MessageProperties.PERSISTENT_BASIC, SerializationUtils.serialize(task));
+            channel.basicPublish("", NEW_LAZY_TASK_QUEUE, MessageProperties.PERSISTENT_BASIC, codec.encode(task));
             totalTaskInputCount.incrementAndGet();
         } catch (IOException e) {
             e.printStackTrace();
@@ -311,6 +313,7 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
         private String password = "guest";
         private int qos = 1;
         private int timeoutInSeconds = 10;
+        private TaskCodec codec = TaskCodec.DEFAULT;
         private String[] targetQueue = {};
 
         public Builder setHost(String host) {
@@ -348,13 +351,19 @@ public class RemoteScheduler implements Scheduler, RemoteComponent, Verifiable,
             return this;
         }
 
+        // must match the codec of the remote service provider
+        public Builder setTaskCodec(TaskCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
         public Builder setTargetQueue(String... targetQueue) {
             this.targetQueue = targetQueue;
             return this;
         }
 
         public RemoteScheduler build() {
-            return new RemoteScheduler(host, port, virtualHost, username, password, qos, timeoutInSeconds, targetQueue);
+            return new RemoteScheduler(host, port, virtualHost, username, password, qos, timeoutInSeconds, codec, targetQueue);
         }
     }
 }
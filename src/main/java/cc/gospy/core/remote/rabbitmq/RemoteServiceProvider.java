@@ -18,12 +18,12 @@ package cc.gospy.core.remote.rabbitmq;
 
 import cc.gospy.core.TaskFilter;
 import cc.gospy.core.entity.Task;
+import cc.gospy.core.entity.TaskCodec;
 import cc.gospy.core.scheduler.queue.LazyTaskQueue;
 import cc.gospy.core.scheduler.queue.impl.TimingLazyTaskQueue;
 import cc.gospy.core.scheduler.remover.DuplicateRemover;
 import cc.gospy.core.scheduler.remover.impl.HashDuplicateRemover;
 import com.rabbitmq.client.*;
-import org.apache.commons.lang3.SerializationUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,10 +47,12 @@ public class RemoteServiceProvider {
     private TaskFilter taskFilter;
     private Map arguments;
     private boolean withPriority;
+    private TaskCodec codec;
 
     private RemoteServiceProvider(DuplicateRemover remover, TaskFilter taskFilter,
                                   TaskDispatcher dispatcher, String host, int port, String virtualHost,
-                                  String username, String password, int ttlInSeconds, boolean withPriority, String... specialQueues) {
+                                  String username, String password, int ttlInSeconds, boolean withPriority,
+                                  TaskCodec codec, String... specialQueues) {
         this.lazyTaskQueue = new TimingLazyTaskQueue(wakedTask -> {
             try {
                 this.publish(wakedTask);
@@ -69,6 +71,7 @@ public class RemoteServiceProvider {
         this.factory.setPassword(password);
         this.specialQueues = specialQueues;
         this.withPriority = withPriority;
+        this.codec = codec;
         this.arguments = new HashMap() {{
             if (ttlInSeconds != -1) {
                 put("x-message-ttl", ttlInSeconds / 1000);
@@ -84,7 +87,7 @@ public class RemoteServiceProvider {
     public static RemoteServiceProvider getDefault() {
         return new RemoteServiceProvider(new HashDuplicateRemover(),
                 TaskFilter.ALLOW_ALL, TaskDispatcher.DEFAULT,
-                "localhost", -1, "/", "guest", "guest", -1, false);
+                "localhost", -1, "/", "guest", "guest", -1, false, TaskCodec.DEFAULT);
     }
 
     public static Builder custom() {
@@ -131,7 +134,7 @@ public class RemoteServiceProvider {
                     Envelope envelope,
                     AMQP.BasicProperties properties,
                     byte[] body) throws IOException {
-                Task newTask = (Task) SerializationUtils.deserialize(body);
+                Task newTask = codec.decode(body);
                 if (newTask.isCheckSkipping() || taskFilter.test(newTask)) {
                     if (duplicateRemover.exists(newTask)) {
                         duplicateRemover.record(newTask);
@@ -152,7 +155,7 @@ public class RemoteServiceProvider {
                     Envelope envelope,
                     AMQP.BasicProperties properties,
                     byte[] body) throws IOException {
-                Task newTask = (Task) SerializationUtils.deserialize(body);
+                Task newTask = codec.decode(body);
                 if (newTask.isCheckSkipping() || taskFilter.test(newTask)) {
                     lazyTaskQueue.add(newTask);
                 }
@@ -172,7 +175,7 @@ public class RemoteServiceProvider {
                 .deliveryMode(2)
                 .priority((int) task.getPriority())
                 .build();
-        channel.basicPublish(EXCHANGE, dispatcher.getTargetQueue(task), properties, SerializationUtils.serialize(task));
+        channel.basicPublish(EXCHANGE, dispatcher.getTargetQueue(task), properties, codec.encode(task));
         duplicateRemover.record(task);
     }
 
@@ -187,6 +190,7 @@ public class RemoteServiceProvider {
         private String password = "guest";
         private int ttlInSeconds = -1;
         private boolean withPriority;
+        private TaskCodec codec = TaskCodec.DEFAULT;
         private String[] specialQueues = {};
 
         public Builder setRemover(DuplicateRemover remover) {
@@ -239,6 +243,12 @@ public class RemoteServiceProvider {
             return this;
         }
 
+        // must match the codec of the remote schedulers
+        public Builder setTaskCodec(TaskCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
         public Builder withPriority() {
             this.withPriority = true;
             return this;
@@ -246,7 +256,7 @@ public class RemoteServiceProvider {
 
         public RemoteServiceProvider build() {
             return new RemoteServiceProvider(remover, filter, dispatcher, host, port,
-                    virtualHost, username, password, ttlInSeconds, withPriority, specialQueues);
+                    virtualHost, username, password, ttlInSeconds, withPriority, codec, specialQueues);
         }
 
     }
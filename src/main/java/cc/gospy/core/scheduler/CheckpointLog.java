@@ -0,0 +1,439 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.entity.TaskCodec;
+import cc.gospy.core.util.base.Codec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+// write-ahead log of a scheduler. every hand-off of a task is appended to the current
+// segment (dir/<seq>.log), which is synced once a second and closed when it is full.
+// compaction folds the last snapshot and the closed segments into a new snapshot
+// (dir/<seq>.snapshot, covering all the segments before seq) on a background thread.
+// it only reads files, so the crawl goes on meanwhile, and recovery replays one snapshot
+// plus the few segments written after it. the state is kept per fingerprint: whether the task
+// has been dispatched (and is still leased, i.e. not finished), and where it waits if it does.
+public class CheckpointLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointLog.class);
+    private static final int MAGIC = 0x47435031; // followed by Task.DIGEST_VERSION, records are keyed by fingerprints
+    private static final int HEADER_SIZE = 8; // magic, digest version
+    private static final int RECORD_OVERHEAD = 17; // event, fingerprint, length, crc
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    public enum Event {
+        DISPATCHED, // taken from the task queue, recorded by the duplicate remover, leased until finished
+        QUEUED, // waiting in the task queue
+        DELAYED, // waiting in the lazy task queue
+        FINISHED // dispatched and fed back, only logged by schedulers which track leases
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    public interface Handler {
+        void handle(Event event, Task task);
+    }
+
+    private interface RecordHandler {
+        void handle(int event, long fingerprint, byte[] bytes, int crc) throws IOException;
+    }
+
+    private static final int DISPATCHED = Event.DISPATCHED.ordinal();
+    private static final int QUEUED = Event.QUEUED.ordinal();
+    private static final int DELAYED = Event.DELAYED.ordinal();
+    private static final int FINISHED = Event.FINISHED.ordinal();
+
+    // what the segments changed about one task
+    private static class Change {
+        private byte[] dispatchedBytes; // the last dispatch, null if not dispatched
+        private int dispatchedCrc;
+        private boolean leased;
+        private boolean waitingChanged;
+        private int waitingEvent = -1; // queued or delayed, -1 if not waiting
+        private byte[] waitingBytes;
+        private int waitingCrc;
+
+        private void apply(int event, byte[] bytes, int crc) {
+            if (event == DISPATCHED) {
+                dispatchedBytes = bytes;
+                dispatchedCrc = crc;
+                leased = true;
+                waitingChanged = true;
+                waitingEvent = -1;
+            } else if (event == FINISHED) {
+                leased = false;
+            } else {
+                leased = false; // back in a queue, the lease is over
+                waitingChanged = true;
+                waitingEvent = event;
+                waitingBytes = bytes;
+                waitingCrc = crc;
+            }
+        }
+    }
+
+    private final File dir;
+    private final Codec<Task> codec;
+    private final long segmentBytes;
+    private final int compactionSegments;
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final Thread syncer;
+    private FileOutputStream segmentStream;
+    private DataOutputStream segment;
+    private long segmentSeq;
+    private long segmentSize;
+    private volatile long snapshotSeq; // the segments before it are in the snapshot
+    private volatile boolean closed;
+
+    public CheckpointLog(String dir) throws IOException {
+        this(dir, TaskCodec.DEFAULT, 64 << 20, 4);
+    }
+
+    public CheckpointLog(String dir, Codec<Task> codec, long segmentBytes, int compactionSegments) throws IOException {
+        if (segmentBytes <= 0 || compactionSegments <= 0) {
+            throw new IllegalArgumentException("segment bytes and compaction segments must be positive.");
+        }
+        this.dir = new File(dir);
+        this.codec = codec;
+        this.segmentBytes = segmentBytes;
+        this.compactionSegments = compactionSegments;
+        if (!this.dir.exists() && !this.dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        File[] tmpFiles = this.dir.listFiles((d, name) -> name.endsWith(".tmp"));
+        for (File file : tmpFiles != null ? tmpFiles : new File[0]) {
+            Files.delete(file.toPath()); // an unfinished compaction
+        }
+        List<Long> snapshots = list(SNAPSHOT_SUFFIX);
+        List<Long> segments = list(LOG_SUFFIX);
+        this.snapshotSeq = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        this.segmentSeq = Math.max(snapshotSeq, segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1);
+        if (!segments.isEmpty() || !snapshots.isEmpty()) {
+            logger.info("Checkpoint found in {}, call recover() before adding any task. [snapshot={}, segments={}]",
+                    dir, snapshotSeq, segmentSeq - snapshotSeq);
+        }
+        openSegment();
+        this.syncer = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(SYNC_INTERVAL_MILLIS);
+                    sync();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    logger.error("Failed to sync checkpoint log: {}", e.getMessage(), e);
+                }
+            }
+        }, "checkpoint-syncer");
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+    }
+
+    private File getFile(long seq, String suffix) {
+        return new File(dir, seq + suffix);
+    }
+
+    private List<Long> list(String suffix) {
+        List<Long> seqs = new ArrayList<>();
+        String[] names = dir.list((d, name) -> name.endsWith(suffix));
+        for (String name : names != null ? names : new String[0]) {
+            try {
+                seqs.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+            } catch (NumberFormatException e) {
+                logger.warn("Skipped unknown file {}", name);
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    private void openSegment() throws IOException {
+        segmentStream = new FileOutputStream(getFile(segmentSeq, LOG_SUFFIX), false);
+        segment = new DataOutputStream(new BufferedOutputStream(segmentStream, 1 << 16));
+        segment.writeInt(MAGIC);
+        segment.writeInt(Task.DIGEST_VERSION);
+        segmentSize = HEADER_SIZE;
+    }
+
+    // close the current segment and start the next one
+    private synchronized void roll() throws IOException {
+        segment.flush();
+        segmentStream.getFD().sync();
+        segment.close();
+        segmentSeq++;
+        openSegment();
+    }
+
+    private void sync() throws IOException {
+        FileDescriptor fd;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            segment.flush();
+            fd = segmentStream.getFD();
+        }
+        try {
+            fd.sync(); // outside the lock, appending goes on
+        } catch (SyncFailedException e) {
+            // rolled meanwhile, which has synced it
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, int event, long fingerprint, byte[] bytes, int crc) throws IOException {
+        out.writeByte(event);
+        out.writeLong(fingerprint);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(crc);
+    }
+
+    public void append(Event event, Task task) {
+        if (closed) {
+            return;
+        }
+        try {
+            byte[] bytes = codec.encode(task);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            boolean compactable = false;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                writeRecord(segment, event.ordinal(), task.getFingerprint(), bytes, (int) crc.getValue());
+                segmentSize += RECORD_OVERHEAD + bytes.length;
+                if (segmentSize >= segmentBytes) {
+                    roll();
+                    compactable = segmentSeq - snapshotSeq >= compactionSegments;
+                }
+            }
+            if (compactable) {
+                compactInBackground();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to append {} to checkpoint log: {}", task, e.getMessage(), e);
+        }
+    }
+
+    private void compactInBackground() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread compactor = new Thread(() -> {
+            try {
+                compact();
+            } catch (Throwable throwable) {
+                logger.error("Failed to compact checkpoint log: {}", throwable.getMessage(), throwable);
+            } finally {
+                compacting.set(false);
+            }
+        }, "checkpoint-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    // close the current segment and fold everything into a new snapshot. it blocks the
+    // caller until the snapshot is written, but not the tasks handed off meanwhile.
+    public void checkpoint() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("checkpoint log is closed.");
+            }
+            if (segmentSize > HEADER_SIZE) {
+                roll();
+            }
+        }
+        compact();
+    }
+
+    private void compact() throws IOException {
+        synchronized (compactionLock) {
+            long targetSeq;
+            synchronized (this) {
+                targetSeq = segmentSeq;
+            }
+            if (targetSeq == snapshotSeq) {
+                return; // nothing new
+            }
+            long startTimeMillis = System.currentTimeMillis();
+            File snapshot = getFile(targetSeq, SNAPSHOT_SUFFIX);
+            File tmpFile = new File(dir, snapshot.getName() + ".tmp");
+            long[] counter = new long[1];
+            try (FileOutputStream stream = new FileOutputStream(tmpFile, false);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(Task.DIGEST_VERSION);
+                fold(targetSeq, (event, fingerprint, bytes, crc) -> {
+                    writeRecord(out, event, fingerprint, bytes, crc);
+                    counter[0]++;
+                });
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(tmpFile.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            snapshotSeq = targetSeq;
+            // the new snapshot is in place, the files it covers can go
+            for (long seq : list(SNAPSHOT_SUFFIX)) {
+                if (seq < targetSeq) {
+                    Files.deleteIfExists(getFile(seq, SNAPSHOT_SUFFIX).toPath());
+                }
+            }
+            for (long seq : list(LOG_SUFFIX)) {
+                if (seq < targetSeq) {
+                    Files.deleteIfExists(getFile(seq, LOG_SUFFIX).toPath());
+                }
+            }
+            logger.info("Checkpoint {} is compacted in {} ms. [records={}, size={}]",
+                    targetSeq, System.currentTimeMillis() - startTimeMillis, counter[0], snapshot.length());
+        }
+    }
+
+    // replay the snapshot and the closed segments into the handler, call it before any task is added.
+    // returns the number of replayed tasks.
+    public long recover(Handler handler) throws IOException {
+        synchronized (compactionLock) {
+            long targetSeq;
+            synchronized (this) {
+                targetSeq = segmentSeq;
+            }
+            long startTimeMillis = System.currentTimeMillis();
+            long[] counter = new long[1];
+            fold(targetSeq, (event, fingerprint, bytes, crc) -> {
+                handler.handle(EVENTS[event], codec.decode(bytes));
+                counter[0]++;
+            });
+            logger.info("Checkpoint is recovered from {} in {} ms. [tasks={}, segments={}]",
+                    dir.getPath(), System.currentTimeMillis() - startTimeMillis, counter[0], targetSeq - snapshotSeq);
+            return counter[0];
+        }
+    }
+
+    // the snapshot holds one dispatched (leased) or finished record per dispatched task, and one
+    // queued or delayed record per waiting task. the changes of the segments are held in memory,
+    // the old snapshot is streamed through them.
+    private void fold(long targetSeq, RecordHandler handler) throws IOException {
+        List<File> segments = new ArrayList<>();
+        for (long seq : list(LOG_SUFFIX)) {
+            if (seq >= snapshotSeq && seq < targetSeq) {
+                segments.add(getFile(seq, LOG_SUFFIX));
+            }
+        }
+        Map<Long, Change> changes = new LinkedHashMap<>(); // in the order of the last hand-off
+        for (File segment : segments) {
+            read(segment, (event, fingerprint, bytes, crc) -> {
+                Change change = changes.remove(fingerprint);
+                if (change == null) {
+                    change = new Change();
+                }
+                change.apply(event, bytes, crc);
+                changes.put(fingerprint, change);
+            });
+        }
+        File snapshot = getFile(snapshotSeq, SNAPSHOT_SUFFIX);
+        if (snapshot.exists()) {
+            read(snapshot, (event, fingerprint, bytes, crc) -> {
+                Change change = changes.get(fingerprint);
+                if (change == null) {
+                    handler.handle(event, fingerprint, bytes, crc);
+                } else if (event == DISPATCHED || event == FINISHED) {
+                    if (change.dispatchedBytes == null) {
+                        // not dispatched again, but any later event ends the lease
+                        handler.handle(FINISHED, fingerprint, bytes, crc);
+                    }
+                } else if (!change.waitingChanged) {
+                    handler.handle(event, fingerprint, bytes, crc);
+                }
+            });
+        }
+        for (Map.Entry<Long, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            if (change.dispatchedBytes != null) {
+                handler.handle(change.leased ? DISPATCHED : FINISHED, entry.getKey(), change.dispatchedBytes, change.dispatchedCrc);
+            }
+            if (change.waitingChanged && change.waitingEvent != -1) {
+                handler.handle(change.waitingEvent, entry.getKey(), change.waitingBytes, change.waitingCrc);
+            }
+        }
+    }
+
+    private static void read(File file, RecordHandler handler) throws IOException {
+        long fileLength = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a checkpoint file: " + file.getPath());
+                }
+                int digestVersion = in.readInt();
+                if (digestVersion != Task.DIGEST_VERSION) {
+                    throw new IOException("checkpoint file " + file.getPath() + " is keyed by task digest version "
+                            + digestVersion + ", expected " + Task.DIGEST_VERSION);
+                }
+            } catch (EOFException e) {
+                return; // crashed before the header was synced
+            }
+            CRC32 crc = new CRC32();
+            int event;
+            while ((event = in.read()) != -1) {
+                try {
+                    long fingerprint = in.readLong();
+                    int length = in.readInt();
+                    if (event < EVENTS.length && length >= 0 && length <= fileLength) {
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        int checksum = in.readInt();
+                        crc.reset();
+                        crc.update(bytes, 0, length);
+                        if ((int) crc.getValue() == checksum) {
+                            handler.handle(event, fingerprint, bytes, checksum);
+                            continue;
+                        }
+                    }
+                } catch (EOFException ignored) {
+                }
+                // only the tail of a segment can be torn, by a crash in the middle of a sync
+                logger.warn("Skipped the torn tail of {}", file.getPath());
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            segment.flush();
+            segmentStream.getFD().sync();
+            segment.close();
+        }
+        syncer.interrupt();
+    }
+}
@@ -18,6 +18,8 @@ package cc.gospy.core.scheduler;
 
 import cc.gospy.core.entity.Task;
 
+import java.util.concurrent.TimeUnit;
+
 public interface Scheduler {
     Task getTask(String fetcherId);
 
@@ -27,6 +29,23 @@ public interface Scheduler {
 
     void stop();
 
+    // block until a task is available or the timeout elapses, schedulers that can
+    // be signaled on new tasks should override this instead of polling.
+    default Task takeTask(String fetcherId, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long backoffMillis = 1;
+        Task task;
+        while ((task = getTask(fetcherId)) == null) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(backoffMillis, remainingMillis));
+            backoffMillis = Math.min(backoffMillis << 1, 100);
+        }
+        return task;
+    }
+
     default Task getTask() {
         return getTask("undefined");
     }
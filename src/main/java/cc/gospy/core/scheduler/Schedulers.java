@@ -17,11 +17,15 @@
 package cc.gospy.core.scheduler;
 
 import cc.gospy.core.scheduler.impl.GeneralScheduler;
+import cc.gospy.core.scheduler.impl.HostPartitionedScheduler;
+import cc.gospy.core.scheduler.impl.ShardedScheduler;
 import cc.gospy.core.scheduler.impl.VerifiableScheduler;
 
 public class Schedulers {
     public static GeneralScheduler GeneralScheduler;
     public static VerifiableScheduler VerifiableScheduler;
+    public static HostPartitionedScheduler HostPartitionedScheduler;
+    public static ShardedScheduler ShardedScheduler;
     public static cc.gospy.core.remote.hprose.RemoteScheduler HproseRemoteScheduler;
     public static cc.gospy.core.remote.rabbitmq.RemoteScheduler RabbitMQRemoteScheduler;
 }
@@ -18,34 +18,56 @@ package cc.gospy.core.scheduler.impl;
 
 import cc.gospy.core.TaskFilter;
 import cc.gospy.core.entity.Task;
+import cc.gospy.core.entity.TaskCodec;
+import cc.gospy.core.fetcher.dns.CachingDnsResolver;
+import cc.gospy.core.scheduler.CheckpointLog;
+import cc.gospy.core.scheduler.Checkpointable;
 import cc.gospy.core.scheduler.Observable;
 import cc.gospy.core.scheduler.Recoverable;
 import cc.gospy.core.scheduler.Scheduler;
+import cc.gospy.core.scheduler.queue.LazyTaskHandler;
 import cc.gospy.core.scheduler.queue.LazyTaskQueue;
 import cc.gospy.core.scheduler.queue.TaskQueue;
 import cc.gospy.core.scheduler.queue.impl.FIFOTaskQueue;
 import cc.gospy.core.scheduler.queue.impl.TimingLazyTaskQueue;
 import cc.gospy.core.scheduler.remover.DuplicateRemover;
 import cc.gospy.core.scheduler.remover.impl.HashDuplicateRemover;
+import cc.gospy.core.util.base.Codec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
 
-public class GeneralScheduler implements Scheduler, Observable, Recoverable {
+public class GeneralScheduler implements Scheduler, Observable, Recoverable, Checkpointable {
     private static final Logger logger = LoggerFactory.getLogger(GeneralScheduler.class);
+    // pause file header. version 1 (no header) held the serialized task queue, version 2 holds
+    // length-prefixed task records, then the lazy tasks. the first long of version 1 is the
+    // first visit time, whose high bytes are zero, so it never reads as the magic.
+    private static final int PAUSE_MAGIC = 0x67736368; // "gsch"
+    private static final int PAUSE_VERSION = 2;
+    private static final int MAX_TASK_RECORD_SIZE = 16 * 1024 * 1024;
 
     private volatile AtomicBoolean isSuspend;
     private final LongAdder totalTaskInput;
     private final LongAdder totalTaskOutput;
-    private long firstVisitTimeMillis;
+    Object taskSignal; // shared by the shards of a sharded scheduler
+    AtomicInteger taskWaiters;
+    long firstVisitTimeMillis;
 
     TaskQueue taskQueue;
     LazyTaskQueue lazyTaskQueue;
     DuplicateRemover duplicateRemover;
     TaskFilter taskFilter;
+    Codec<Task> taskCodec = TaskCodec.DEFAULT;
+    CachingDnsResolver dnsResolver;
+    CheckpointLog checkpointLog;
 
     GeneralScheduler(TaskQueue taskQueue
             , LazyTaskQueue lazyTaskQueue
@@ -58,6 +80,8 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
         this.totalTaskInput = new LongAdder();
         this.totalTaskOutput = new LongAdder();
         this.isSuspend = new AtomicBoolean();
+        this.taskSignal = new Object();
+        this.taskWaiters = new AtomicInteger();
     }
 
     @Override
@@ -68,29 +92,144 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
         if (firstVisitTimeMillis == 0) {
             firstVisitTimeMillis = System.currentTimeMillis();
         }
+        if (taskQueue.isConcurrent()) {
+            Task task = taskQueue.poll();
+            prefetchNext();
+            return dispatch(task);
+        }
         synchronized (taskQueue) {
             if (taskQueue.size() > 0) {
-                final Task task = taskQueue.poll();
-                try {
-                    task.setLastVisitTimeMillis(System.currentTimeMillis());
-                    synchronized (duplicateRemover) {
-                        duplicateRemover.record(task); // add to duplicate remover
+                Task task = taskQueue.poll();
+                prefetchNext();
+                return dispatch(task);
+            }
+        }
+        return null;
+    }
+
+    // resolve the host of the next task while the current one is being fetched
+    private void prefetchNext() {
+        if (dnsResolver == null) {
+            return;
+        }
+        Task next = taskQueue.peek();
+        String host;
+        if (next != null && (host = next.getHost()) != null) {
+            dnsResolver.prefetch(getHostName(host));
+        }
+    }
+
+    // "user@example.com:8080?q" -> "example.com", null for an ipv6 literal
+    private static String getHostName(String host) {
+        int index = host.lastIndexOf('@');
+        if (index != -1) {
+            host = host.substring(index + 1);
+        }
+        if (host.startsWith("[")) {
+            return null;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == ':' || c == '?' || c == '#') {
+                return host.substring(0, i);
+            }
+        }
+        return host;
+    }
+
+    private Task dispatch(final Task task) {
+        if (task == null) {
+            return null; // empty, or held back by the queue
+        }
+        try {
+            task.setLastVisitTimeMillis(System.currentTimeMillis());
+            synchronized (duplicateRemover) {
+                duplicateRemover.record(task); // add to duplicate remover
+            }
+            log(CheckpointLog.Event.DISPATCHED, task);
+            return task;
+        } finally {
+            totalTaskOutput.increment();
+        }
+    }
+
+    @Override
+    public Task takeTask(String fetcherId, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Task task;
+        while ((task = getTask(fetcherId)) == null) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return null;
+            }
+            taskWaiters.incrementAndGet();
+            try {
+                synchronized (taskSignal) {
+                    // re-check under the signal monitor, so that a notify between
+                    // the poll above and the wait below cannot be missed.
+                    long delayMillis = isSuspend.get() ? remainingMillis : taskQueue.getDelayMillis();
+                    if (delayMillis > 0) {
+                        taskSignal.wait(Math.min(delayMillis, remainingMillis));
                     }
-                    return task;
-                } finally {
-                    totalTaskOutput.increment();
                 }
+            } finally {
+                taskWaiters.decrementAndGet();
             }
         }
-        return null;
+        return task;
     }
 
-    private void addTask0(final Task task) {
-        if (task.getExpectedVisitInSeconds() == 0) {
+    // logged ahead of the hand-off, so that the log never sees a task dispatched before queued
+    void log(CheckpointLog.Event event, Task task) {
+        if (checkpointLog != null) {
+            checkpointLog.append(event, task);
+        }
+    }
+
+    void enqueue(final Task task) {
+        log(CheckpointLog.Event.QUEUED, task);
+        if (taskQueue.isConcurrent()) {
+            taskQueue.add(task);
+        } else {
             synchronized (taskQueue) {
                 taskQueue.add(task);
             }
+        }
+        signal(false);
+    }
+
+    void enqueueAll(final List<Task> tasks) {
+        tasks.forEach(task -> log(CheckpointLog.Event.QUEUED, task));
+        if (taskQueue.isConcurrent()) {
+            taskQueue.addAll(tasks);
         } else {
+            synchronized (taskQueue) {
+                taskQueue.addAll(tasks);
+            }
+        }
+        signal(true);
+    }
+
+    // the waiters count themselves before re-checking the queue, so a task added
+    // while nobody is counted will be seen by the next waiter without a notify.
+    private void signal(boolean all) {
+        if (taskWaiters.get() == 0) {
+            return;
+        }
+        synchronized (taskSignal) {
+            if (all) {
+                taskSignal.notifyAll();
+            } else {
+                taskSignal.notify();
+            }
+        }
+    }
+
+    private void addTask0(final Task task) {
+        if (task.getExpectedVisitInSeconds() == 0) {
+            enqueue(task);
+        } else {
+            log(CheckpointLog.Event.DELAYED, task);
             synchronized (lazyTaskQueue) {
                 lazyTaskQueue.add(task);
             }
@@ -120,6 +259,7 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
     @Override
     public void addLazyTask(String executorId, Task task) {
         if (!isSuspend.get() && (task.isCheckSkipping() || taskFilter.test(task))) {
+            log(CheckpointLog.Event.DELAYED, task);
             lazyTaskQueue.add(task);
         }
     }
@@ -127,6 +267,21 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
     @Override
     public void stop() {
         lazyTaskQueue.stop();
+        if (checkpointLog != null) {
+            try {
+                checkpointLog.close();
+            } catch (IOException e) {
+                logger.error("Failed to close checkpoint log: {}", e.getMessage(), e);
+            }
+        }
+        if (duplicateRemover instanceof Closeable) {
+            // e.g. a file-mapped bloom filter, synced and unmapped
+            try {
+                ((Closeable) duplicateRemover).close();
+            } catch (IOException e) {
+                logger.error("Failed to close duplicate remover: {}", e.getMessage(), e);
+            }
+        }
     }
 
     @Override
@@ -159,12 +314,38 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
         return System.currentTimeMillis() - firstVisitTimeMillis;
     }
 
+    // codec of the tasks written by pause(dir)
+    public void setTaskCodec(Codec<Task> taskCodec) {
+        this.taskCodec = taskCodec;
+    }
+
+    private void writeTask(ObjectOutputStream outputStream, Task task) throws IOException {
+        byte[] bytes = taskCodec.encode(task);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    // null at the end mark
+    private Task readTask(ObjectInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_TASK_RECORD_SIZE) {
+            throw new IOException("corrupted task record, length " + length);
+        }
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return taskCodec.decode(bytes);
+    }
+
     @Override
     public synchronized void pause(String dir) throws Throwable {
         if (isSuspend.get()) {
             logger.error("the scheduler has already suspended.");
 //            throw new RuntimeException("the scheduler has already suspended.");
         }
+        isSuspend.set(true); // no task is taken or added from now on
 
         if (duplicateRemover instanceof Recoverable) {
             synchronized (duplicateRemover) {
@@ -177,24 +358,44 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
         File file = new File(dir, this.getClass().getTypeName() + ".tmp");
         logger.info("Writing scheduler data to {}", file.getPath());
         try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(file, false))) {
+            outputStream.writeInt(PAUSE_MAGIC);
+            outputStream.writeInt(PAUSE_VERSION);
             outputStream.writeLong(firstVisitTimeMillis);
             outputStream.writeLong(totalTaskInput.sum());
             outputStream.writeLong(totalTaskOutput.sum());
 
-            // notice that the lazy-tasks will not lazy load later, they are
-            // directly appended to the rear of the activate-task-queue.
-            synchronized (taskQueue) {
-                synchronized (lazyTaskQueue) {
-                    lazyTaskQueue.dump().forEachRemaining(task -> taskQueue.add(task));
+            if (taskQueue.isConcurrent()) {
+                // a getter that passed the suspend check may still poll without the monitor,
+                // so drain by polling, a task is then either dispatched or written, never both.
+                Task task;
+                while ((task = taskQueue.poll()) != null) {
+                    writeTask(outputStream, task);
+                }
+            } else {
+                synchronized (taskQueue) {
+                    for (Task task : taskQueue) {
+                        writeTask(outputStream, task);
+                    }
+                    taskQueue.clear();
+                }
+            }
+            outputStream.writeInt(-1); // end of tasks
+            // the lazy tasks keep their last and expected visit, so they are due as before on resume.
+            synchronized (lazyTaskQueue) {
+                if (lazyTaskQueue instanceof Recoverable) {
+                    ((Recoverable) lazyTaskQueue).pause(dir); // kept on its own
+                } else {
+                    Iterator<Task> lazyTasks = lazyTaskQueue.dump();
+                    while (lazyTasks.hasNext()) {
+                        writeTask(outputStream, lazyTasks.next());
+                    }
                     lazyTaskQueue.stop();
                 }
-                outputStream.writeObject(taskQueue);
-                taskQueue.clear();
             }
+            outputStream.writeInt(-1); // end of lazy tasks
             outputStream.writeObject(taskFilter);
         }
 
-        isSuspend.set(true);
         logger.info("The scheduler is successfully suspended.");
     }
 
@@ -203,28 +404,124 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
 //        if (!isSuspend.get()) {
 //            throw new RuntimeException("the scheduler has already recovered.");
 //        }
-
-        if (duplicateRemover instanceof Recoverable) {
-            ((Recoverable) duplicateRemover).resume(dir);
-        } else {
+        isSuspend.set(true); // until the queues are restored
+        if (!(duplicateRemover instanceof Recoverable)) {
             throw new RuntimeException(duplicateRemover.getClass().getTypeName() + " is not recoverable.");
         }
 
         File file = new File(dir, this.getClass().getTypeName() + ".tmp");
         logger.info("Reading scheduler data from {}", file.getPath());
         try (ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(file))) {
+            int magic = inputStream.readInt();
+            int version = magic == PAUSE_MAGIC ? inputStream.readInt() : 1;
+            if (version != PAUSE_VERSION) {
+                throw new IOException("scheduler data " + file.getPath() + " is of version " + version
+                        + ", expected " + PAUSE_VERSION + ", it was paused by an older release and cannot be resumed");
+            }
+            ((Recoverable) duplicateRemover).resume(dir); // after the check, nothing is restored from a stale dir
             this.firstVisitTimeMillis = inputStream.readLong();
             this.totalTaskInput.reset();
             this.totalTaskOutput.reset();
             this.totalTaskInput.add(inputStream.readLong());
             this.totalTaskOutput.add(inputStream.readLong());
-            this.taskQueue = (TaskQueue) inputStream.readObject();
+            // tasks added by a late adder after the pause are kept behind the saved ones
+            List<Task> leftTasks = new ArrayList<>();
+            Task task;
+            if (taskQueue.isConcurrent()) {
+                while ((task = taskQueue.poll()) != null) {
+                    leftTasks.add(task);
+                }
+                while ((task = readTask(inputStream)) != null) {
+                    taskQueue.add(task);
+                }
+                taskQueue.addAll(leftTasks);
+            } else {
+                synchronized (taskQueue) {
+                    leftTasks.addAll(taskQueue);
+                    taskQueue.clear();
+                    while ((task = readTask(inputStream)) != null) {
+                        taskQueue.add(task);
+                    }
+                    taskQueue.addAll(leftTasks);
+                }
+            }
+            synchronized (lazyTaskQueue) {
+                while ((task = readTask(inputStream)) != null) {
+                    lazyTaskQueue.add(task);
+                }
+                if (lazyTaskQueue instanceof Recoverable) {
+                    ((Recoverable) lazyTaskQueue).resume(dir);
+                }
+            }
             this.taskFilter = (TaskFilter) inputStream.readObject();
         }
         isSuspend.set(false);
+        synchronized (taskSignal) {
+            taskSignal.notifyAll();
+        }
         logger.info("The scheduler is successfully recovered.");
     }
 
+    // fold the log into a snapshot in the calling thread, the crawl goes on meanwhile
+    @Override
+    public void checkpoint() throws Throwable {
+        if (checkpointLog == null) {
+            throw new RuntimeException("no checkpoint log is set.");
+        }
+        checkpointLog.checkpoint();
+    }
+
+    // rebuild the queues and the duplicate remover from the checkpoint log, before crawling
+    @Override
+    public synchronized void recover() throws Throwable {
+        if (checkpointLog == null) {
+            throw new RuntimeException("no checkpoint log is set.");
+        }
+        long[] counts = new long[CheckpointLog.Event.values().length];
+        long[] firstVisit = {Long.MAX_VALUE};
+        synchronized (taskQueue) {
+            synchronized (lazyTaskQueue) {
+                checkpointLog.recover((event, task) -> {
+                    switch (event) {
+                        case DISPATCHED:
+                            recoverLease(task);
+                            // fall through, it is recorded as well
+                        case FINISHED:
+                            synchronized (duplicateRemover) {
+                                duplicateRemover.record(task);
+                            }
+                            firstVisit[0] = Math.min(firstVisit[0], task.getLastVisitTimeMillis());
+                            break;
+                        case QUEUED:
+                            taskQueue.add(task);
+                            break;
+                        case DELAYED:
+                            lazyTaskQueue.add(task);
+                            break;
+                    }
+                    counts[event.ordinal()]++;
+                });
+            }
+        }
+        long dispatched = counts[CheckpointLog.Event.DISPATCHED.ordinal()] + counts[CheckpointLog.Event.FINISHED.ordinal()];
+        long queued = counts[CheckpointLog.Event.QUEUED.ordinal()];
+        long delayed = counts[CheckpointLog.Event.DELAYED.ordinal()];
+        if (dispatched > 0 && firstVisitTimeMillis == 0) {
+            firstVisitTimeMillis = firstVisit[0];
+        }
+        totalTaskOutput.add(dispatched);
+        totalTaskInput.add(dispatched + queued + delayed);
+        synchronized (taskSignal) {
+            taskSignal.notifyAll();
+        }
+        logger.info("The scheduler is recovered from checkpoint. [dispatched={}, queued={}, delayed={}]", dispatched, queued, delayed);
+    }
+
+    // a task dispatched but not finished at the checkpoint, called while recovering with the
+    // queue monitors held. there is no feedback here, so a dispatched task is done.
+    void recoverLease(Task task) {
+    }
+
     public static GeneralScheduler getDefault() {
         return new Builder().build();
     }
@@ -236,13 +533,11 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
     public static class Builder {
         private GeneralScheduler scheduler;
         private TaskQueue taskQueue = new FIFOTaskQueue();
-        private LazyTaskQueue lazyTaskQueue = new TimingLazyTaskQueue(wakedTask -> {
-            synchronized (taskQueue) {
-                taskQueue.add(wakedTask);
-            }
-        });
+        private LazyTaskQueue lazyTaskQueue = new TimingLazyTaskQueue(LazyTaskHandler.batched(wakedTasks -> scheduler.enqueueAll(wakedTasks)));
         private DuplicateRemover remover = new HashDuplicateRemover();
         private TaskFilter filter = TaskFilter.ALLOW_ALL;
+        private CachingDnsResolver dnsResolver;
+        private CheckpointLog checkpointLog;
 
         public Builder setTaskQueue(TaskQueue taskQueue) {
             this.taskQueue = taskQueue;
@@ -264,8 +559,24 @@ public class GeneralScheduler implements Scheduler, Observable, Recoverable {
             return this;
         }
 
+        // the resolver of the fetchers, hosts of the tasks about to be dispatched are prefetched
+        public Builder setDnsPrefetcher(CachingDnsResolver dnsResolver) {
+            this.dnsResolver = dnsResolver;
+            return this;
+        }
+
+        // every hand-off is logged, see Checkpointable. use an in-memory lazy task queue with it,
+        // a file-mapped one keeps the lazy tasks on its own.
+        public Builder setCheckpointLog(CheckpointLog checkpointLog) {
+            this.checkpointLog = checkpointLog;
+            return this;
+        }
+
         public GeneralScheduler build() {
-            return scheduler = new GeneralScheduler(taskQueue, lazyTaskQueue, remover, filter);
+            scheduler = new GeneralScheduler(taskQueue, lazyTaskQueue, remover, filter);
+            scheduler.dnsResolver = dnsResolver;
+            scheduler.checkpointLog = checkpointLog;
+            return scheduler;
         }
     }
 
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler.impl;
+
+import cc.gospy.core.TaskFilter;
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.fetcher.dns.CachingDnsResolver;
+import cc.gospy.core.scheduler.CheckpointLog;
+import cc.gospy.core.scheduler.queue.CrawlDelayResolver;
+import cc.gospy.core.scheduler.queue.LazyTaskHandler;
+import cc.gospy.core.scheduler.queue.LazyTaskQueue;
+import cc.gospy.core.scheduler.queue.TaskQueue;
+import cc.gospy.core.scheduler.queue.impl.HostPartitionedTaskQueue;
+import cc.gospy.core.scheduler.queue.impl.RobotsCrawlDelayResolver;
+import cc.gospy.core.scheduler.queue.impl.TimingLazyTaskQueue;
+import cc.gospy.core.scheduler.remover.DuplicateRemover;
+import cc.gospy.core.scheduler.remover.impl.HashDuplicateRemover;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.function.Supplier;
+
+// a polite scheduler, tasks of a host are released only after the crawl delay of
+// that host, so that the fetchers never need to sleep between two visits.
+public class HostPartitionedScheduler extends GeneralScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(HostPartitionedScheduler.class);
+
+    HostPartitionedScheduler(HostPartitionedTaskQueue taskQueue
+            , LazyTaskQueue lazyTaskQueue
+            , DuplicateRemover duplicateRemover
+            , TaskFilter filter) {
+        super(taskQueue, lazyTaskQueue, duplicateRemover, filter);
+    }
+
+    public void setDelayMillis(String host, long delayMillis) {
+        ((HostPartitionedTaskQueue) taskQueue).setDelayMillis(host, delayMillis);
+    }
+
+    public static HostPartitionedScheduler getDefault() {
+        return new Builder().build();
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static class Builder extends GeneralScheduler.Builder {
+        private HostPartitionedScheduler scheduler;
+        private LazyTaskQueue lazyTaskQueue = new TimingLazyTaskQueue(LazyTaskHandler.batched(wakedTasks -> scheduler.enqueueAll(wakedTasks)));
+        private DuplicateRemover remover = new HashDuplicateRemover();
+        private TaskFilter filter = TaskFilter.ALLOW_ALL;
+        private CrawlDelayResolver resolver = CrawlDelayResolver.NONE;
+        private Map<String, Long> hostDelayMillis = new LinkedHashMap<>();
+        private long defaultDelayMillis = 1000;
+        private CachingDnsResolver dnsResolver;
+        private CheckpointLog checkpointLog;
+        private HostPartitionedTaskQueue partitionedQueue;
+        private Supplier<? extends Queue<Task>> hostQueueFactory;
+        private List<Task> initialTasks = new ArrayList<>();
+
+        // a host partitioned queue is used as is (the host delays set here still apply). any other
+        // queue orders the tasks within each host instead: its type is instantiated per host,
+        // and the tasks already in it are carried over.
+        @Override
+        public Builder setTaskQueue(TaskQueue taskQueue) {
+            if (taskQueue instanceof HostPartitionedTaskQueue) {
+                this.partitionedQueue = (HostPartitionedTaskQueue) taskQueue;
+            } else {
+                this.hostQueueFactory = hostQueueFactoryOf(taskQueue.getClass());
+                this.initialTasks.addAll(taskQueue);
+            }
+            return this;
+        }
+
+        private static Supplier<Queue<Task>> hostQueueFactoryOf(Class<? extends TaskQueue> type) {
+            Constructor<? extends TaskQueue> constructor;
+            try {
+                constructor = type.getConstructor();
+            } catch (NoSuchMethodException e) {
+                logger.warn("{} has no default constructor, the tasks of each host are ordered by priority.", type.getTypeName());
+                return null;
+            }
+            return () -> {
+                try {
+                    return constructor.newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+            };
+        }
+
+        // the queue which orders the tasks of each host, by priority if not set
+        public Builder setHostQueueFactory(Supplier<? extends Queue<Task>> hostQueueFactory) {
+            this.hostQueueFactory = hostQueueFactory;
+            return this;
+        }
+
+        public Builder setLazyTaskQueue(LazyTaskQueue lazyTaskQueue) {
+            this.lazyTaskQueue = lazyTaskQueue;
+            return this;
+        }
+
+        public Builder setRemover(DuplicateRemover duplicateRemover) {
+            remover = duplicateRemover;
+            return this;
+        }
+
+        public Builder setTaskFilter(TaskFilter taskFilter) {
+            filter = taskFilter;
+            return this;
+        }
+
+        public Builder setDefaultDelayMillis(long defaultDelayMillis) {
+            this.defaultDelayMillis = defaultDelayMillis;
+            return this;
+        }
+
+        public Builder setDelayMillis(String host, long delayMillis) {
+            hostDelayMillis.put(host, delayMillis);
+            return this;
+        }
+
+        public Builder setCrawlDelayResolver(CrawlDelayResolver resolver) {
+            this.resolver = resolver;
+            return this;
+        }
+
+        // honor the "Crawl-delay" in robots.txt, explicit host delays still take precedence
+        public Builder checkForCrawlDelay(String userAgent) {
+            this.resolver = new RobotsCrawlDelayResolver(userAgent);
+            return this;
+        }
+
+        @Override
+        public Builder setDnsPrefetcher(CachingDnsResolver dnsResolver) {
+            this.dnsResolver = dnsResolver;
+            return this;
+        }
+
+        @Override
+        public Builder setCheckpointLog(CheckpointLog checkpointLog) {
+            this.checkpointLog = checkpointLog;
+            return this;
+        }
+
+        public HostPartitionedScheduler build() {
+            HostPartitionedTaskQueue taskQueue = partitionedQueue != null ? partitionedQueue : new HostPartitionedTaskQueue(defaultDelayMillis, resolver);
+            hostDelayMillis.forEach(taskQueue::setDelayMillis);
+            if (hostQueueFactory != null) {
+                taskQueue.setHostQueueFactory(hostQueueFactory);
+            }
+            taskQueue.addAll(initialTasks);
+            scheduler = new HostPartitionedScheduler(taskQueue, lazyTaskQueue, remover, filter);
+            scheduler.dnsResolver = dnsResolver;
+            scheduler.checkpointLog = checkpointLog;
+            return scheduler;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler.impl;
+
+import cc.gospy.core.TaskFilter;
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.fetcher.dns.CachingDnsResolver;
+import cc.gospy.core.scheduler.*;
+import cc.gospy.core.scheduler.queue.LazyTaskHandler;
+import cc.gospy.core.scheduler.queue.LazyTaskQueue;
+import cc.gospy.core.scheduler.queue.TaskQueue;
+import cc.gospy.core.scheduler.queue.impl.FIFOTaskQueue;
+import cc.gospy.core.scheduler.queue.impl.TimingLazyTaskQueue;
+import cc.gospy.core.scheduler.remover.DuplicateRemover;
+import cc.gospy.core.scheduler.remover.impl.HashDuplicateRemover;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// n general schedulers, each one owns the hosts hashed to it with its own task queue, duplicate
+// remover and lazy task queue, so that adding and taking tasks rarely meet on a monitor.
+// a thread takes from its home shard and steals from the others when that runs dry, and moves
+// on to the next home after a batch, so that a few threads cannot starve the other shards.
+public class ShardedScheduler implements Scheduler, Observable, Recoverable, Checkpointable {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedScheduler.class);
+    private static final int HOME_BATCH_SIZE = 64;
+
+    private final GeneralScheduler[] shards;
+    private final Object taskSignal;
+    private final AtomicInteger taskWaiters;
+    private final AtomicInteger nextHome;
+    private final ThreadLocal<int[]> home; // home shard, tasks taken from it
+    private volatile boolean isSuspend;
+
+    ShardedScheduler(GeneralScheduler[] shards) {
+        this.shards = shards;
+        this.taskSignal = new Object();
+        this.taskWaiters = new AtomicInteger();
+        this.nextHome = new AtomicInteger();
+        this.home = ThreadLocal.withInitial(() -> new int[]{Math.floorMod(nextHome.getAndIncrement(), shards.length), 0});
+        for (GeneralScheduler shard : shards) {
+            // one signal for all the shards, a waiting thread can take from any of them
+            shard.taskSignal = taskSignal;
+            shard.taskWaiters = taskWaiters;
+        }
+    }
+
+    private GeneralScheduler getShard(Task task) {
+        String host = task.getHost();
+        int hash = host != null ? host.hashCode() : 0;
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public Task getTask(String fetcherId) {
+        if (isSuspend) {
+            return null;
+        }
+        int[] home = this.home.get();
+        if (home[1] >= HOME_BATCH_SIZE) {
+            home[0] = (home[0] + 1) % shards.length;
+            home[1] = 0;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            Task task = shards[(home[0] + i) % shards.length].getTask(fetcherId);
+            if (task != null) {
+                home[1]++;
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private long getDelayMillis() {
+        long delayMillis = Long.MAX_VALUE;
+        for (GeneralScheduler shard : shards) {
+            delayMillis = Math.min(delayMillis, shard.taskQueue.getDelayMillis());
+        }
+        return delayMillis;
+    }
+
+    @Override
+    public Task takeTask(String fetcherId, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Task task;
+        while ((task = getTask(fetcherId)) == null) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return null;
+            }
+            taskWaiters.incrementAndGet();
+            try {
+                synchronized (taskSignal) {
+                    long delayMillis = isSuspend ? remainingMillis : getDelayMillis();
+                    if (delayMillis > 0) {
+                        taskSignal.wait(Math.min(delayMillis, remainingMillis));
+                    }
+                }
+            } finally {
+                taskWaiters.decrementAndGet();
+            }
+        }
+        return task;
+    }
+
+    @Override
+    public void addTask(String executorId, Task task) {
+        getShard(task).addTask(executorId, task);
+    }
+
+    @Override
+    public void addLazyTask(String executorId, Task task) {
+        getShard(task).addLazyTask(executorId, task);
+    }
+
+    @Override
+    public void stop() {
+        for (GeneralScheduler shard : shards) {
+            shard.stop();
+        }
+    }
+
+    @Override
+    public long getTotalTaskInputCount() {
+        long count = 0;
+        for (GeneralScheduler shard : shards) {
+            count += shard.getTotalTaskInputCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getTotalTaskOutputCount() {
+        long count = 0;
+        for (GeneralScheduler shard : shards) {
+            count += shard.getTotalTaskOutputCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getRecodedTaskSize() {
+        long size = 0;
+        for (GeneralScheduler shard : shards) {
+            size += shard.getRecodedTaskSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long getCurrentTaskQueueSize() {
+        long size = 0;
+        for (GeneralScheduler shard : shards) {
+            size += shard.getCurrentTaskQueueSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long getCurrentLazyTaskQueueSize() {
+        long size = 0;
+        for (GeneralScheduler shard : shards) {
+            size += shard.getCurrentLazyTaskQueueSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long getRunningTimeMillis() {
+        long firstVisitTimeMillis = Long.MAX_VALUE;
+        for (GeneralScheduler shard : shards) {
+            if (shard.firstVisitTimeMillis != 0) {
+                firstVisitTimeMillis = Math.min(firstVisitTimeMillis, shard.firstVisitTimeMillis);
+            }
+        }
+        return firstVisitTimeMillis == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - firstVisitTimeMillis;
+    }
+
+    private static String getShardDir(String dir, int index) throws IOException {
+        File shardDir = new File(dir, "shard-" + index);
+        if (!shardDir.exists() && !shardDir.mkdirs()) {
+            throw new IOException("cannot create directory " + shardDir.getPath());
+        }
+        return shardDir.getPath();
+    }
+
+    @Override
+    public synchronized void pause(String dir) throws Throwable {
+        isSuspend = true;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].pause(getShardDir(dir, i));
+        }
+        logger.info("All the {} shards are suspended.", shards.length);
+    }
+
+    @Override
+    public synchronized void resume(String dir) throws Throwable {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].resume(getShardDir(dir, i));
+        }
+        isSuspend = false;
+        synchronized (taskSignal) {
+            taskSignal.notifyAll();
+        }
+        logger.info("All the {} shards are recovered.", shards.length);
+    }
+
+    @Override
+    public void checkpoint() throws Throwable {
+        for (GeneralScheduler shard : shards) {
+            shard.checkpoint();
+        }
+    }
+
+    @Override
+    public synchronized void recover() throws Throwable {
+        for (GeneralScheduler shard : shards) {
+            shard.recover();
+        }
+    }
+
+    public static ShardedScheduler getDefault() {
+        return new Builder().build();
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int shardCount = Runtime.getRuntime().availableProcessors();
+        private Supplier<TaskQueue> taskQueueFactory = FIFOTaskQueue::new;
+        private Function<LazyTaskHandler, LazyTaskQueue> lazyTaskQueueFactory = TimingLazyTaskQueue::new;
+        private Supplier<DuplicateRemover> removerFactory = HashDuplicateRemover::new;
+        private TaskFilter filter = TaskFilter.ALLOW_ALL;
+        private CachingDnsResolver dnsResolver;
+        private String checkpointDir;
+
+        public Builder setShardCount(int shardCount) {
+            if (shardCount <= 0) {
+                throw new IllegalArgumentException("shard count must be positive.");
+            }
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        // every shard gets its own queue from the factories
+        public Builder setTaskQueueFactory(Supplier<TaskQueue> taskQueueFactory) {
+            this.taskQueueFactory = taskQueueFactory;
+            return this;
+        }
+
+        public Builder setLazyTaskQueueFactory(Function<LazyTaskHandler, LazyTaskQueue> lazyTaskQueueFactory) {
+            this.lazyTaskQueueFactory = lazyTaskQueueFactory;
+            return this;
+        }
+
+        public Builder setRemoverFactory(Supplier<DuplicateRemover> removerFactory) {
+            this.removerFactory = removerFactory;
+            return this;
+        }
+
+        public Builder setTaskFilter(TaskFilter taskFilter) {
+            filter = taskFilter;
+            return this;
+        }
+
+        public Builder setDnsPrefetcher(CachingDnsResolver dnsResolver) {
+            this.dnsResolver = dnsResolver;
+            return this;
+        }
+
+        // one checkpoint log per shard, in dir/shard-<index>
+        public Builder setCheckpointDir(String dir) {
+            this.checkpointDir = dir;
+            return this;
+        }
+
+        public ShardedScheduler build() {
+            GeneralScheduler[] shards = new GeneralScheduler[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                final int index = i;
+                GeneralScheduler.Builder builder = GeneralScheduler.custom()
+                        .setTaskQueue(taskQueueFactory.get())
+                        .setLazyTaskQueue(lazyTaskQueueFactory.apply(LazyTaskHandler.batched(wakedTasks -> shards[index].enqueueAll(wakedTasks))))
+                        .setRemover(removerFactory.get())
+                        .setTaskFilter(filter)
+                        .setDnsPrefetcher(dnsResolver);
+                if (checkpointDir != null) {
+                    try {
+                        builder.setCheckpointLog(new CheckpointLog(getShardDir(checkpointDir, i)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e.getMessage(), e);
+                    }
+                }
+                shards[i] = builder.build();
+            }
+            return new ShardedScheduler(shards);
+        }
+    }
+
+}
@@ -18,8 +18,11 @@ package cc.gospy.core.scheduler.impl;
 
 import cc.gospy.core.TaskFilter;
 import cc.gospy.core.entity.Task;
+import cc.gospy.core.fetcher.dns.CachingDnsResolver;
+import cc.gospy.core.scheduler.CheckpointLog;
 import cc.gospy.core.scheduler.ExitCallback;
 import cc.gospy.core.scheduler.Verifiable;
+import cc.gospy.core.scheduler.queue.LazyTaskHandler;
 import cc.gospy.core.scheduler.queue.LazyTaskQueue;
 import cc.gospy.core.scheduler.queue.TaskQueue;
 import cc.gospy.core.scheduler.queue.impl.FIFOTaskQueue;
@@ -31,21 +34,40 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 @Experimental
 public class VerifiableScheduler extends GeneralScheduler implements Verifiable {
     private static final Logger logger = LoggerFactory.getLogger(VerifiableScheduler.class);
-
-    private Set<Task> pendingTasks = Collections.synchronizedSet(new LinkedHashSet<>());
-    private final Map<String, Long> totalTaskDistributeCounts = Collections.synchronizedMap(new LinkedHashMap<>());
-    private final Map<String, Long> pendingTaskDistributeCounts = Collections.synchronizedMap(new LinkedHashMap<>());
-    private Thread checkerThread;
+    private static final long LEASE_TICK_MILLIS = 100;
+
+    // dispatched tasks waiting for feedback, by fingerprint. the wheel orders them by deadline,
+    // a feedback only drops the lease from the table and its wheel entry is skipped on expiry.
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final Queue<Lease>[] leaseWheel;
+    private final Map<String, LongAdder> totalTaskDistributeCounts = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> pendingTaskDistributeCounts = new ConcurrentHashMap<>();
+    private volatile Thread checkerThread;
     private ExitCallback callback;
     private int pendingTimeInSeconds;
-    private boolean checkerRunning;
+    private volatile boolean checkerRunning;
     private boolean autoExit;
 
+    private static class Lease {
+        private final Task task;
+        private final String fetcherId;
+        private final long deadlineMillis;
+
+        private Lease(Task task, String fetcherId, long deadlineMillis) {
+            this.task = task;
+            this.fetcherId = fetcherId;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
     VerifiableScheduler(TaskQueue taskQueue,
                         LazyTaskQueue lazyTaskQueue,
                         DuplicateRemover duplicateRemover,
@@ -59,6 +81,11 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
         this.callback = callback;
         this.exitVerifyTimeMillis = TimeUnit.SECONDS.toMillis(exitThresholdInSeconds);
         this.autoExit = autoExit;
+        // one revolution covers the pending time, so a slot only holds the leases of one tick
+        this.leaseWheel = new Queue[(int) (TimeUnit.SECONDS.toMillis(pendingTimeInSeconds) / LEASE_TICK_MILLIS) + 2];
+        for (int i = 0; i < leaseWheel.length; i++) {
+            leaseWheel[i] = new ConcurrentLinkedQueue<>();
+        }
     }
 
     @Override
@@ -71,6 +98,11 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
         super.addLazyTask(executorId, task);
     }
 
+    private static LongAdder getCounter(Map<String, LongAdder> counters, String fetcherId) {
+        LongAdder counter = counters.get(fetcherId);
+        return counter != null ? counter : counters.computeIfAbsent(fetcherId, id -> new LongAdder());
+    }
+
     @Override
     public Task getTask(String fetcherId) {
         Task task = super.getTask(fetcherId);
@@ -79,23 +111,26 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
             return null;
         }
         checkerTrigger();
-        synchronized (pendingTasks) {
-            pendingTasks.add(task);
-            synchronized (totalTaskDistributeCounts) {
-                totalTaskDistributeCounts.put(fetcherId, totalTaskDistributeCounts.getOrDefault(fetcherId, 0L) + 1);
-            }
-            synchronized (pendingTaskDistributeCounts) {
-                pendingTaskDistributeCounts.put(fetcherId, pendingTaskDistributeCounts.getOrDefault(fetcherId, 0L) + 1);
-            }
-            return task;
+        Lease lease = new Lease(task, fetcherId, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(pendingTimeInSeconds));
+        Lease previous = leases.put(task.getFingerprint(), lease);
+        if (previous != null) {
+            getCounter(pendingTaskDistributeCounts, previous.fetcherId).decrement(); // re-dispatched
         }
+        leaseWheel[(int) ((lease.deadlineMillis / LEASE_TICK_MILLIS) % leaseWheel.length)].offer(lease);
+        getCounter(totalTaskDistributeCounts, fetcherId).increment();
+        getCounter(pendingTaskDistributeCounts, fetcherId).increment();
+        return task;
     }
 
     public void checkerTrigger() {
         if (checkerThread == null) {
-            checkerThread = new PendingTaskChecker(pendingTimeInSeconds);
-            checkerRunning = true;
-            checkerThread.start();
+            synchronized (leases) {
+                if (checkerThread == null) {
+                    checkerRunning = true;
+                    checkerThread = new PendingTaskChecker();
+                    checkerThread.start();
+                }
+            }
         }
     }
 
@@ -104,7 +139,7 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
 
     @Experimental
     public void exitTrigger() {
-        if (autoExit && pendingTasks.size() == 0 && taskQueue.size() == 0 && lazyTaskQueue.size() == 0) {
+        if (autoExit && leases.isEmpty() && taskQueue.size() == 0 && lazyTaskQueue.size() == 0) {
             if (exitPendingTimeMillis == 0) {
                 exitPendingTimeMillis = System.currentTimeMillis(); // set pending start time
             } else if (System.currentTimeMillis() - exitPendingTimeMillis > exitVerifyTimeMillis) {
@@ -119,70 +154,93 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
 
     @Override
     public void feedback(String fetcherId, Task task) {
-        synchronized (pendingTasks) {
-            if (!pendingTasks.contains(task)) {
-                return; // task has been reported by someone
-            }
-            pendingTasks.remove(task);
-            synchronized (pendingTaskDistributeCounts) {
-                if (pendingTaskDistributeCounts.getOrDefault(fetcherId, 1L) == 1L) {
-                    pendingTaskDistributeCounts.remove(fetcherId);
-                } else {
-                    pendingTaskDistributeCounts.put(fetcherId, pendingTaskDistributeCounts.get(fetcherId) - 1);
-                }
-            }
+        Lease lease = leases.remove(task.getFingerprint());
+        if (lease == null) {
+            return; // task has been reported by someone
         }
+        getCounter(pendingTaskDistributeCounts, lease.fetcherId).decrement();
+        log(CheckpointLog.Event.FINISHED, lease.task);
+    }
+
+    // no feedback was logged for it, so it is fetched again
+    @Override
+    void recoverLease(Task task) {
+        task.setPriority(Task.Priority.EMERGENCY);
+        taskQueue.add(task);
     }
 
     @Override
     public long getPendingTaskSize() {
-        return pendingTasks.size();
+        return leases.size();
+    }
+
+    private static Map<String, Long> sumUp(Map<String, LongAdder> counters, boolean skipZero) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        counters.forEach((fetcherId, counter) -> {
+            long count = counter.sum();
+            if (count != 0 || !skipZero) {
+                counts.put(fetcherId, count);
+            }
+        });
+        return counts;
     }
 
     @Override
     public Map<String, Long> getTotalTaskDistributeCounts() {
-        return totalTaskDistributeCounts;
+        return sumUp(totalTaskDistributeCounts, false);
     }
 
     @Override
     public Map<String, Long> getPendingTaskDistributeCounts() {
-        return pendingTaskDistributeCounts;
+        return sumUp(pendingTaskDistributeCounts, true);
     }
 
     private class PendingTaskChecker extends Thread {
-        private int pendingTimeInSeconds;
+        private long lastTick = System.currentTimeMillis() / LEASE_TICK_MILLIS - 1;
 
-        public PendingTaskChecker(int pendingTimeInSeconds) {
-            this.pendingTimeInSeconds = pendingTimeInSeconds;
+        public PendingTaskChecker() {
+            super("pending-task-checker");
+            setDaemon(true);
         }
 
         @Override
         public void run() {
             while (checkerRunning) {
                 try {
-                    sleep(TimeUnit.SECONDS.toMillis(pendingTimeInSeconds));
+                    sleep(LEASE_TICK_MILLIS);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    break;
                 }
-                for (Iterator<Task> iterator = pendingTasks.iterator(); iterator.hasNext(); ) {
-                    Task task = iterator.next();
-                    if (task == null) {
-                        iterator.remove();
-                        continue;
-                    }
-                    if (System.currentTimeMillis() - task.getLastVisitTimeMillis() > TimeUnit.SECONDS.toMillis(pendingTimeInSeconds)) {
-                        // tasks are recommended to be inserted into head.
-                        // notice that this does not apply to a FIFO queue!
-                        task.setPriority(Task.Priority.EMERGENCY);
-                        taskQueue.add(task);
-                        logger.warn("{} pending timeout, re-add to queue.", task);
-                    } else {
-                        break;
-                    }
+                // the ticks which have fully passed
+                long now = System.currentTimeMillis();
+                for (long tick = lastTick + 1; tick < now / LEASE_TICK_MILLIS; tick++) {
+                    expire(leaseWheel[(int) (tick % leaseWheel.length)], now);
+                    lastTick = tick;
                 }
             }
             logger.info("Pending task checker is stopped.");
         }
+
+        private void expire(Queue<Lease> slot, long now) {
+            List<Lease> notDue = null;
+            Lease lease;
+            while ((lease = slot.poll()) != null) {
+                if (lease.deadlineMillis > now) {
+                    // offered late by a stalled thread, after its tick has been checked
+                    (notDue != null ? notDue : (notDue = new ArrayList<>())).add(lease);
+                } else if (leases.remove(lease.task.getFingerprint(), lease)) {
+                    getCounter(pendingTaskDistributeCounts, lease.fetcherId).decrement();
+                    // tasks are recommended to be inserted into head.
+                    // notice that this does not apply to a FIFO queue!
+                    lease.task.setPriority(Task.Priority.EMERGENCY);
+                    enqueue(lease.task);
+                    logger.warn("{} pending timeout, re-add to queue.", lease.task);
+                }
+            }
+            if (notDue != null) {
+                slot.addAll(notDue);
+            }
+        }
     }
 
     @Override
@@ -195,12 +253,17 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
     public void pause(String dir) throws Throwable {
         // abort receiving any feedback, moving the pending tasks back to the task queue
         // and wait for the future suspending.
-        synchronized (pendingTasks) {
-            pendingTasks.forEach(task -> task.setPriority(Task.Priority.EMERGENCY));
-            synchronized (taskQueue) {
-                taskQueue.addAll(pendingTasks);
+        List<Task> pendingTasks = new ArrayList<>();
+        for (Lease lease : leases.values()) {
+            if (leases.remove(lease.task.getFingerprint(), lease)) {
+                getCounter(pendingTaskDistributeCounts, lease.fetcherId).decrement();
+                lease.task.setPriority(Task.Priority.EMERGENCY);
+                pendingTasks.add(lease.task);
             }
         }
+        synchronized (taskQueue) {
+            taskQueue.addAll(pendingTasks);
+        }
         super.pause(dir);
     }
 
@@ -213,14 +276,17 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
     }
 
     public static class Builder extends GeneralScheduler.Builder {
+        private VerifiableScheduler scheduler;
         private TaskQueue taskQueue = new FIFOTaskQueue();
-        private LazyTaskQueue lazyTaskQueue = new TimingLazyTaskQueue(wakedTask -> taskQueue.add(wakedTask));
+        private LazyTaskQueue lazyTaskQueue = new TimingLazyTaskQueue(LazyTaskHandler.batched(wakedTasks -> scheduler.enqueueAll(wakedTasks)));
         private DuplicateRemover remover = new HashDuplicateRemover();
         private TaskFilter filter = TaskFilter.ALLOW_ALL;
         private ExitCallback exitCallback = ExitCallback.DEFAULT;
         private int pendingTimeInSeconds = 10;
         private int exitThresholdInSeconds = 5;
         private boolean ae = true;
+        private CachingDnsResolver dnsResolver;
+        private CheckpointLog checkpointLog;
 
         public Builder setTaskQueue(TaskQueue taskQueue) {
             this.taskQueue = taskQueue;
@@ -263,8 +329,23 @@ public class VerifiableScheduler extends GeneralScheduler implements Verifiable
             return this;
         }
 
+        @Override
+        public Builder setDnsPrefetcher(CachingDnsResolver dnsResolver) {
+            this.dnsResolver = dnsResolver;
+            return this;
+        }
+
+        @Override
+        public Builder setCheckpointLog(CheckpointLog checkpointLog) {
+            this.checkpointLog = checkpointLog;
+            return this;
+        }
+
         public VerifiableScheduler build() {
-            return new VerifiableScheduler(taskQueue, lazyTaskQueue, remover, filter, exitCallback, pendingTimeInSeconds, exitThresholdInSeconds, ae);
+            scheduler = new VerifiableScheduler(taskQueue, lazyTaskQueue, remover, filter, exitCallback, pendingTimeInSeconds, exitThresholdInSeconds, ae);
+            scheduler.dnsResolver = dnsResolver;
+            scheduler.checkpointLog = checkpointLog;
+            return scheduler;
         }
     }
 
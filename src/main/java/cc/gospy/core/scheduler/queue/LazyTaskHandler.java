@@ -18,7 +18,30 @@ package cc.gospy.core.scheduler.queue;
 
 import cc.gospy.core.entity.Task;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
 @FunctionalInterface
 public interface LazyTaskHandler {
     void invoke(Task wakedTask);
+
+    // tasks woken at the same time, handlers that can take them at once should override this
+    default void invokeAll(List<Task> wakedTasks) {
+        wakedTasks.forEach(this::invoke);
+    }
+
+    static LazyTaskHandler batched(Consumer<List<Task>> consumer) {
+        return new LazyTaskHandler() {
+            @Override
+            public void invoke(Task wakedTask) {
+                consumer.accept(Collections.singletonList(wakedTask));
+            }
+
+            @Override
+            public void invokeAll(List<Task> wakedTasks) {
+                consumer.accept(wakedTasks);
+            }
+        };
+    }
 }
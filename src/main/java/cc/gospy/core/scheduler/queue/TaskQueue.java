@@ -22,4 +22,16 @@ import java.io.Serializable;
 import java.util.AbstractQueue;
 
 public abstract class TaskQueue extends AbstractQueue<Task> implements Serializable {
+
+    // milliseconds before the head of this queue can be polled, queues that
+    // hold tasks back (e.g. for politeness) should override this.
+    public long getDelayMillis() {
+        return size() > 0 ? 0 : Long.MAX_VALUE;
+    }
+
+    // concurrent queues are safe without external locking, so that
+    // the schedulers can skip synchronizing on them.
+    public boolean isConcurrent() {
+        return false;
+    }
 }
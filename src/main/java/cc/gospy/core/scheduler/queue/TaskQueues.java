@@ -16,12 +16,22 @@
 
 package cc.gospy.core.scheduler.queue;
 
+import cc.gospy.core.scheduler.queue.impl.ConcurrentFIFOTaskQueue;
+import cc.gospy.core.scheduler.queue.impl.ConcurrentPriorityTaskQueue;
 import cc.gospy.core.scheduler.queue.impl.FIFOTaskQueue;
+import cc.gospy.core.scheduler.queue.impl.FileMappedLazyTaskQueue;
+import cc.gospy.core.scheduler.queue.impl.HostPartitionedTaskQueue;
 import cc.gospy.core.scheduler.queue.impl.PriorityTaskQueue;
+import cc.gospy.core.scheduler.queue.impl.SpillingTaskQueue;
 import cc.gospy.core.scheduler.queue.impl.TimingLazyTaskQueue;
 
 public class TaskQueues {
     public static FIFOTaskQueue FIFOTaskQueue;
     public static PriorityTaskQueue PriorityTaskQueue;
+    public static HostPartitionedTaskQueue HostPartitionedTaskQueue;
+    public static ConcurrentFIFOTaskQueue ConcurrentFIFOTaskQueue;
+    public static ConcurrentPriorityTaskQueue ConcurrentPriorityTaskQueue;
+    public static SpillingTaskQueue SpillingTaskQueue;
     public static TimingLazyTaskQueue TimingLazyTaskQueue;
+    public static FileMappedLazyTaskQueue FileMappedLazyTaskQueue;
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler.queue.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.scheduler.queue.TaskQueue;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// lock-free fifo queue, safe for multiple producers and consumers
+public class ConcurrentFIFOTaskQueue extends TaskQueue {
+    private final Queue<Task> taskQueue;
+    private final LongAdder size;
+
+    public ConcurrentFIFOTaskQueue() {
+        this.taskQueue = new ConcurrentLinkedQueue<>();
+        this.size = new LongAdder();
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public Iterator<Task> iterator() {
+        Iterator<Task> iterator = taskQueue.iterator();
+        return new Iterator<Task>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Task next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                size.decrement();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        // ConcurrentLinkedQueue.size() traverses the whole queue
+        return (int) Math.max(0, size.sum());
+    }
+
+    @Override
+    public boolean offer(Task task) {
+        taskQueue.offer(task);
+        size.increment();
+        return true;
+    }
+
+    @Override
+    public Task poll() {
+        Task task = taskQueue.poll();
+        if (task != null) {
+            size.decrement();
+        }
+        return task;
+    }
+
+    @Override
+    public Task peek() {
+        return taskQueue.peek();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler.queue.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.scheduler.queue.TaskQueue;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// lock-free priority queue, keeps one fifo bucket per Task.Priority level,
+// priorities between two levels fall into the lower level.
+public class ConcurrentPriorityTaskQueue extends TaskQueue {
+    private static final Task.Priority[] LEVELS = Task.Priority.values();
+
+    private final Queue<Task>[] buckets;
+    private final LongAdder size;
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentPriorityTaskQueue() {
+        this.buckets = new Queue[LEVELS.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.size = new LongAdder();
+    }
+
+    private static int bucketOf(byte priority) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (priority <= LEVELS[i].getValue()) {
+                return i;
+            }
+        }
+        return LEVELS.length - 1;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public Iterator<Task> iterator() {
+        return new Iterator<Task>() {
+            private int index;
+            private Iterator<Task> current = buckets[0].iterator();
+            private Iterator<Task> last;
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && index < buckets.length - 1) {
+                    current = buckets[++index].iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Task next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = current;
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                last.remove();
+                last = null;
+                size.decrement();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0, size.sum());
+    }
+
+    @Override
+    public boolean offer(Task task) {
+        buckets[bucketOf(task.getPriority())].offer(task);
+        size.increment();
+        return true;
+    }
+
+    @Override
+    public Task poll() {
+        for (Queue<Task> bucket : buckets) {
+            Task task = bucket.poll();
+            if (task != null) {
+                size.decrement();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Task peek() {
+        for (Queue<Task> bucket : buckets) {
+            Task task = bucket.peek();
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.scheduler.queue.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.entity.TaskCodec;
+import cc.gospy.core.scheduler.Recoverable;
+import cc.gospy.core.scheduler.queue.LazyTaskHandler;
+import cc.gospy.core.scheduler.queue.LazyTaskQueue;
+import cc.gospy.core.util.base.Codec;
+import cc.gospy.core.util.base.FileMappedQueue;
+import com.google.common.collect.Iterators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// lazy tasks kept on disk in one file mapped queue per time bucket (dir/<due time / bucket
+// millis>), only the current and the next bucket are loaded into a timing wheel. a loaded
+// bucket stays on disk until its time has passed, so a crash hands its tasks off again
+// rather than losing them, while pause and stop write the unfired ones back exactly once.
+public class FileMappedLazyTaskQueue extends LazyTaskQueue implements Recoverable, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FileMappedLazyTaskQueue.class);
+    private static final int MAX_OPEN_BUCKETS = 16;
+
+    private final File dir;
+    private final long bucketMillis;
+    private final Codec<Task> codec;
+    private final TimingLazyTaskQueue nearTermTasks;
+    private final TreeMap<Long, Integer> unloadedBuckets; // bucket -> size
+    private final TreeSet<Long> loadedBuckets;
+    private final Map<Long, FileMappedQueue<Task>> openBuckets;
+    private long unloadedSize;
+    private long currentBucket = Long.MIN_VALUE; // the bucket of now at the last load
+    private boolean paused;
+    private Thread loader;
+
+    public FileMappedLazyTaskQueue(String dir, LazyTaskHandler handler) throws IOException {
+        this(dir, handler, TimeUnit.MINUTES.toMillis(10), TaskCodec.DEFAULT);
+    }
+
+    public FileMappedLazyTaskQueue(String dir, LazyTaskHandler handler, long bucketMillis, Codec<Task> codec) throws IOException {
+        super(handler);
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("bucket millis must be positive.");
+        }
+        this.dir = new File(dir);
+        this.bucketMillis = bucketMillis;
+        this.codec = codec;
+        this.nearTermTasks = new TimingLazyTaskQueue(handler);
+        this.unloadedBuckets = new TreeMap<>();
+        this.loadedBuckets = new TreeSet<>();
+        this.openBuckets = new LinkedHashMap<Long, FileMappedQueue<Task>>(MAX_OPEN_BUCKETS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, FileMappedQueue<Task>> eldest) {
+                if (size() > MAX_OPEN_BUCKETS) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (!this.dir.exists() && !this.dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        File[] files = this.dir.listFiles(File::isDirectory);
+        for (File file : files != null ? files : new File[0]) {
+            try {
+                long bucket = Long.parseLong(file.getName());
+                int size = getBucket(bucket).size();
+                unloadedBuckets.put(bucket, size);
+                unloadedSize += size;
+            } catch (NumberFormatException e) {
+                logger.warn("Skipped unknown directory {}", file.getPath());
+            }
+        }
+        if (!unloadedBuckets.isEmpty()) {
+            logger.info("Lazy task buckets loaded from {}. [buckets={}, tasks={}]", dir, unloadedBuckets.size(), unloadedSize);
+        }
+        startLoader();
+    }
+
+    private static long getDueTimeMillis(Task task) {
+        return task.getLastVisitTimeMillis() + TimeUnit.SECONDS.toMillis(task.getExpectedVisitInSeconds());
+    }
+
+    private void startLoader() {
+        loader = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    synchronized (this) {
+                        if (!paused) {
+                            load();
+                        }
+                        long now = System.currentTimeMillis();
+                        wait(paused ? 0 : (now / bucketMillis + 1) * bucketMillis - now); // the next bucket
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable throwable) {
+                    logger.error("Failed to load lazy tasks: {}", throwable.getMessage(), throwable);
+                }
+            }
+        }, "lazy-task-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    // retire the buckets whose time has passed, then load all the buckets up to the next one
+    private synchronized void load() {
+        long nowBucket = System.currentTimeMillis() / bucketMillis;
+        while (!loadedBuckets.isEmpty() && loadedBuckets.first() < nowBucket - 1) {
+            deleteBucket(loadedBuckets.pollFirst());
+        }
+        NavigableMap<Long, Integer> dueBuckets = unloadedBuckets.headMap(nowBucket + 1, true);
+        for (Map.Entry<Long, Integer> entry : dueBuckets.entrySet()) {
+            getBucket(entry.getKey()).forEach(nearTermTasks::add);
+            unloadedSize -= entry.getValue();
+            loadedBuckets.add(entry.getKey());
+        }
+        dueBuckets.clear();
+        loadedBuckets.add(nowBucket);
+        loadedBuckets.add(nowBucket + 1);
+        currentBucket = nowBucket;
+    }
+
+    private FileMappedQueue<Task> getBucket(long bucket) {
+        return openBuckets.computeIfAbsent(bucket, key -> {
+            try {
+                return new FileMappedQueue<>(new File(dir, String.valueOf(key)).getPath(), codec);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void deleteBucket(long bucket) {
+        FileMappedQueue<Task> queue = openBuckets.remove(bucket);
+        if (queue != null) {
+            queue.close();
+        }
+        File bucketDir = new File(dir, String.valueOf(bucket));
+        File[] files = bucketDir.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        bucketDir.delete();
+    }
+
+    private void write(long bucket, Task task) {
+        getBucket(bucket).add(task);
+    }
+
+    @Override
+    public synchronized boolean add(Task task) {
+        long bucket = getDueTimeMillis(task) / bucketMillis;
+        if (currentBucket != Long.MIN_VALUE && bucket <= loadedBuckets.last()) {
+            // near term, kept on disk in a bucket that is retired only after the task is due
+            write(Math.max(bucket, currentBucket), task);
+            nearTermTasks.add(task);
+        } else {
+            write(bucket, task);
+            unloadedBuckets.merge(bucket, 1, Integer::sum);
+            unloadedSize++;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean offer(Task task) {
+        return add(task);
+    }
+
+    @Override
+    protected boolean ready() {
+        Task task = nearTermTasks.peek();
+        return task != null && getDueTimeMillis(task) <= System.currentTimeMillis();
+    }
+
+    // the earliest of the near-term tasks
+    @Override
+    public Task peek() {
+        return nearTermTasks.peek();
+    }
+
+    @Override
+    public Task poll() {
+        return nearTermTasks.poll();
+    }
+
+    @Override
+    public synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, unloadedSize + nearTermTasks.size());
+    }
+
+    // near-term tasks first, then the buckets on disk, one at a time
+    @Override
+    public synchronized Iterator<Task> iterator() {
+        Iterator<Iterator<Task>> buckets = Iterators.transform(
+                new ArrayList<>(unloadedBuckets.keySet()).iterator(), bucket -> getBucket(bucket).iterator());
+        return Iterators.concat(nearTermTasks.iterator(), Iterators.concat(buckets));
+    }
+
+    // all the tasks in memory, prefer pause(dir) to keep them on disk
+    @Override
+    public synchronized Iterator<Task> dump() {
+        List<Task> tasks = new ArrayList<>();
+        iterator().forEachRemaining(tasks::add);
+        clear();
+        return tasks.iterator();
+    }
+
+    @Override
+    public synchronized void clear() {
+        nearTermTasks.clear();
+        for (long bucket : new ArrayList<>(unloadedBuckets.keySet())) {
+            deleteBucket(bucket);
+        }
+        for (long bucket : loadedBuckets) {
+            deleteBucket(bucket);
+        }
+        unloadedBuckets.clear();
+        loadedBuckets.clear();
+        unloadedSize = 0;
+        currentBucket = Long.MIN_VALUE;
+    }
+
+    // the tasks in this queue are on disk already, the unfired near-term ones are written
+    // back in place of the loaded buckets. dir is not used.
+    @Override
+    public synchronized void pause(String dir) {
+        if (paused) {
+            return;
+        }
+        paused = true;
+        List<Task> unfired = new ArrayList<>();
+        nearTermTasks.dump().forEachRemaining(unfired::add);
+        for (long bucket : loadedBuckets) {
+            deleteBucket(bucket);
+        }
+        loadedBuckets.clear();
+        currentBucket = Long.MIN_VALUE;
+        for (Task task : unfired) {
+            add(task);
+        }
+        openBuckets.values().forEach(FileMappedQueue::close);
+        openBuckets.clear();
+        logger.info("Lazy tasks are kept in {}. [buckets={}, tasks={}]", this.dir.getPath(), unloadedBuckets.size(), unloadedSize);
+    }
+
+    @Override
+    public synchronized void resume(String dir) {
+        paused = false;
+        notifyAll(); // the loader loads the due buckets
+    }
+
+    @Override
+    public void stop() {
+        pause(null);
+        loader.interrupt();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+}
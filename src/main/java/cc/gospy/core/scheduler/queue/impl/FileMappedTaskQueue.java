@@ -17,17 +17,28 @@
 package cc.gospy.core.scheduler.queue.impl;
 
 import cc.gospy.core.entity.Task;
+import cc.gospy.core.entity.TaskCodec;
 import cc.gospy.core.scheduler.queue.TaskQueue;
+import cc.gospy.core.util.base.Codec;
 import cc.gospy.core.util.base.FileMappedQueue;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 
 public class FileMappedTaskQueue extends TaskQueue {
     private FileMappedQueue<Task> tasks;
 
     public FileMappedTaskQueue(String dir) throws IOException {
-        tasks = new FileMappedQueue<>(dir);
+        this(dir, TaskCodec.DEFAULT);
+    }
+
+    public FileMappedTaskQueue(String dir, Codec<Task> codec) throws IOException {
+        this(dir, codec, FileMappedQueue.SyncPolicy.NEVER);
+    }
+
+    public FileMappedTaskQueue(String dir, Codec<Task> codec, FileMappedQueue.SyncPolicy syncPolicy) throws IOException {
+        tasks = new FileMappedQueue<>(dir, codec, syncPolicy);
     }
 
     @Override
@@ -45,11 +56,36 @@ public class FileMappedTaskQueue extends TaskQueue {
         return tasks.offer(task);
     }
 
+    @Override
+    public boolean addAll(Collection<? extends Task> c) {
+        return tasks.addAll(c);
+    }
+
     @Override
     public Task poll() {
         return tasks.poll();
     }
 
+    public int drainTo(Collection<? super Task> c, int maxElements) {
+        return tasks.drainTo(c, maxElements);
+    }
+
+    public void sync() {
+        tasks.sync();
+    }
+
+    public void close() {
+        tasks.close();
+    }
+
+    // enqueue and dequeue are guarded by two locks inside the file mapped queue, a page taken
+    // over by the dequeue side is handed over under both. iterating is not safe against polls,
+    // the schedulers drain a concurrent queue by polling instead.
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
     @Override
     public Task peek() {
         return tasks.peek();
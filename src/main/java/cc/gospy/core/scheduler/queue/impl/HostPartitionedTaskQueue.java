@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler.queue.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.scheduler.queue.CrawlDelayResolver;
+import cc.gospy.core.scheduler.queue.TaskQueue;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.Supplier;
+
+// keeps one queue per host, and releases tasks of a host only after its crawl delay
+public class HostPartitionedTaskQueue extends TaskQueue {
+    private final Map<String, Partition> partitions;
+    private final PriorityQueue<Partition> readyPartitions; // non-empty partitions, by next allowed time
+    private final PriorityQueue<Idle> idlePartitions; // emptied partitions, dropped once their delay has elapsed
+    private final Map<String, Long> hostDelayMillis;
+    private transient CrawlDelayResolver resolver;
+    private transient Supplier<? extends Queue<Task>> hostQueueFactory; // by priority if null
+    private long defaultDelayMillis;
+    private int size;
+
+    public HostPartitionedTaskQueue() {
+        this(1000);
+    }
+
+    public HostPartitionedTaskQueue(long defaultDelayMillis) {
+        this(defaultDelayMillis, CrawlDelayResolver.NONE);
+    }
+
+    public HostPartitionedTaskQueue(long defaultDelayMillis, CrawlDelayResolver resolver) {
+        this.partitions = new HashMap<>();
+        this.readyPartitions = new PriorityQueue<>();
+        this.idlePartitions = new PriorityQueue<>();
+        this.hostDelayMillis = new HashMap<>();
+        this.defaultDelayMillis = defaultDelayMillis;
+        this.resolver = resolver;
+    }
+
+    public synchronized void setDelayMillis(String host, long delayMillis) {
+        hostDelayMillis.put(host, delayMillis);
+    }
+
+    public synchronized void setDefaultDelayMillis(long defaultDelayMillis) {
+        this.defaultDelayMillis = defaultDelayMillis;
+    }
+
+    public synchronized void setCrawlDelayResolver(CrawlDelayResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    // the queue which orders the tasks of each new host, e.g. ArrayDeque::new for fifo
+    public synchronized void setHostQueueFactory(Supplier<? extends Queue<Task>> hostQueueFactory) {
+        this.hostQueueFactory = hostQueueFactory;
+    }
+
+    public CrawlDelayResolver getCrawlDelayResolver() {
+        return resolver;
+    }
+
+    private long getDelayMillis(Task task) {
+        Long delayMillis = hostDelayMillis.get(task.getHost());
+        if (delayMillis != null) {
+            return delayMillis;
+        }
+        long resolved = resolver != null ? resolver.getDelayMillis(task) : -1;
+        return resolved >= 0 ? resolved : defaultDelayMillis;
+    }
+
+    // an empty partition is kept until its delay has elapsed, so that a host which is
+    // visited again right away still waits. after that it carries no state and is dropped.
+    private void dropIdlePartitions() {
+        long now = System.currentTimeMillis();
+        Idle idle;
+        while ((idle = idlePartitions.peek()) != null && idle.expireTimeMillis <= now) {
+            idlePartitions.poll();
+            Partition partition = idle.partition;
+            // stale if the partition has been refilled (or emptied again later) since
+            if (partition.tasks.isEmpty() && partition.nextAllowedTimeMillis <= now && partitions.get(partition.host) == partition) {
+                partitions.remove(partition.host);
+            }
+        }
+    }
+
+    private void makeIdle(Partition partition) {
+        idlePartitions.add(new Idle(partition, partition.nextAllowedTimeMillis));
+    }
+
+    @Override
+    public synchronized boolean offer(Task task) {
+        dropIdlePartitions();
+        Partition partition = partitions.computeIfAbsent(String.valueOf(task.getHost()),
+                host -> new Partition(host, hostQueueFactory != null ? hostQueueFactory.get() : new PriorityQueue<>()));
+        if (partition.tasks.isEmpty()) {
+            readyPartitions.add(partition);
+        }
+        partition.tasks.add(task);
+        size++;
+        return true;
+    }
+
+    @Override
+    public synchronized Task poll() {
+        Partition partition = readyPartitions.peek();
+        if (partition == null || partition.nextAllowedTimeMillis > System.currentTimeMillis()) {
+            return null;
+        }
+        readyPartitions.poll();
+        Task task = partition.tasks.poll();
+        size--;
+        partition.nextAllowedTimeMillis = System.currentTimeMillis() + getDelayMillis(task);
+        if (!partition.tasks.isEmpty()) {
+            readyPartitions.add(partition);
+        } else {
+            makeIdle(partition);
+        }
+        dropIdlePartitions();
+        return task;
+    }
+
+    @Override
+    public synchronized Task peek() {
+        Partition partition = readyPartitions.peek();
+        if (partition == null || partition.nextAllowedTimeMillis > System.currentTimeMillis()) {
+            return null;
+        }
+        return partition.tasks.peek();
+    }
+
+    @Override
+    public synchronized long getDelayMillis() {
+        Partition partition = readyPartitions.peek();
+        if (partition == null) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, partition.nextAllowedTimeMillis - System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    // hosts with waiting tasks
+    public synchronized int hostSize() {
+        return readyPartitions.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        // poll() may hold tasks back, so the default clear-by-polling does not work here
+        readyPartitions.forEach(partition -> {
+            partition.tasks.clear();
+            makeIdle(partition);
+        });
+        readyPartitions.clear();
+        size = 0;
+        dropIdlePartitions();
+    }
+
+    @Override
+    public synchronized Iterator<Task> iterator() {
+        List<Task> snapshot = new ArrayList<>(size);
+        partitions.values().forEach(partition -> snapshot.addAll(partition.tasks));
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    private static class Idle implements Comparable<Idle>, Serializable {
+        private final Partition partition;
+        private final long expireTimeMillis;
+
+        private Idle(Partition partition, long expireTimeMillis) {
+            this.partition = partition;
+            this.expireTimeMillis = expireTimeMillis;
+        }
+
+        @Override
+        public int compareTo(Idle idle) {
+            return Long.compare(expireTimeMillis, idle.expireTimeMillis);
+        }
+    }
+
+    private static class Partition implements Comparable<Partition>, Serializable {
+        private final String host;
+        private final Queue<Task> tasks;
+        private long nextAllowedTimeMillis;
+
+        private Partition(String host, Queue<Task> tasks) {
+            this.host = host;
+            this.tasks = tasks;
+        }
+
+        @Override
+        public int compareTo(Partition partition) {
+            return Long.compare(nextAllowedTimeMillis, partition.nextAllowedTimeMillis);
+        }
+    }
+}
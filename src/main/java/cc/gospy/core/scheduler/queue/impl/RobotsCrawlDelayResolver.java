@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler.queue.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.scheduler.queue.CrawlDelayResolver;
+import com.brandwatch.robots.RobotsConfig;
+import com.brandwatch.robots.RobotsFactory;
+import com.brandwatch.robots.RobotsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// resolves the "Crawl-delay" of robots.txt with the same robots service as Gospy.checkForRobots(),
+// files are loaded in background and the host is treated as unknown (-1) until its file is loaded.
+public class RobotsCrawlDelayResolver implements CrawlDelayResolver {
+    private static final Logger logger = LoggerFactory.getLogger(RobotsCrawlDelayResolver.class);
+    private static final long UNKNOWN = -1;
+
+    private final Map<String, Long> delays = new ConcurrentHashMap<>();
+    private final ExecutorService loader;
+    private final RobotsService robotsService;
+    private final String userAgent;
+
+    public RobotsCrawlDelayResolver(String userAgent) {
+        this(userAgent, newRobotsService());
+    }
+
+    public RobotsCrawlDelayResolver(String userAgent, RobotsService robotsService) {
+        this(userAgent, robotsService, 2);
+    }
+
+    public RobotsCrawlDelayResolver(String userAgent, RobotsService robotsService, int nThreads) {
+        this.userAgent = userAgent;
+        this.robotsService = robotsService;
+        this.loader = Executors.newFixedThreadPool(nThreads, runnable -> {
+            Thread thread = new Thread(runnable, "robots-crawl-delay-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static RobotsService newRobotsService() {
+        RobotsConfig config = new RobotsConfig();
+        config.setMaxRedirectHops(3);
+        config.setRequestTimeoutMillis(2000);
+        config.setReadTimeoutMillis(3000);
+        return new RobotsFactory(config).createService();
+    }
+
+    @Override
+    public long getDelayMillis(Task task) {
+        String host = task.getHost();
+        if (host == null || task.getProtocol() == null || !task.getProtocol().startsWith("http")) {
+            return UNKNOWN;
+        }
+        Long delayMillis = delays.get(host);
+        if (delayMillis == null) {
+            if (delays.putIfAbsent(host, UNKNOWN) == null) {
+                URI uri = URI.create(task.getProtocol() + "://" + host + "/");
+                loader.execute(() -> delays.put(host, load(uri)));
+            }
+            return UNKNOWN;
+        }
+        return delayMillis;
+    }
+
+    // the robots service fetches and caches the file, and picks the group of our user agent
+    private long load(URI uri) {
+        try {
+            long delaySeconds = robotsService.getCrawlDelay(userAgent, uri);
+            if (delaySeconds <= 0) {
+                return UNKNOWN; // not given, the default delay applies
+            }
+            logger.info("Picked up crawl-delay {}s for {}", delaySeconds, uri.getHost());
+            return delaySeconds * 1000;
+        } catch (RuntimeException e) {
+            logger.warn("Fail to load robots.txt of {}: {}", uri.getHost(), e.getMessage());
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.scheduler.queue.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.entity.TaskCodec;
+import cc.gospy.core.scheduler.queue.TaskQueue;
+import cc.gospy.core.util.base.FileMappedQueue;
+import com.google.common.collect.Iterators;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// a fifo queue with bounded memory, tasks are kept in a head and a tail in memory,
+// and the tasks in between are spilled to a file mapped queue once the tail is full.
+// the head is refilled from the disk in background before it drains.
+public class SpillingTaskQueue extends TaskQueue {
+    public static final int DEFAULT_HEAD_CAPACITY = 10000;
+    public static final int DEFAULT_TAIL_CAPACITY = 10000;
+
+    private final ArrayDeque<Task> head; // polled first
+    private final ArrayDeque<Task> tail; // offered last
+    private final transient FileMappedQueue<Task> spill; // in between
+    private final transient ExecutorService refiller;
+    private final int headCapacity;
+    private final int tailCapacity;
+    private final int refillThreshold;
+    private boolean refilling;
+
+    public SpillingTaskQueue(String dir) throws IOException {
+        this(dir, DEFAULT_HEAD_CAPACITY, DEFAULT_TAIL_CAPACITY);
+    }
+
+    public SpillingTaskQueue(String dir, int headCapacity, int tailCapacity) throws IOException {
+        if (headCapacity <= 0 || tailCapacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        this.head = new ArrayDeque<>(headCapacity);
+        this.tail = new ArrayDeque<>(tailCapacity);
+        this.spill = new FileMappedQueue<>(dir, TaskCodec.DEFAULT);
+        this.refiller = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "spilling-queue-refiller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.headCapacity = headCapacity;
+        this.tailCapacity = tailCapacity;
+        this.refillThreshold = Math.max(1, headCapacity / 2);
+    }
+
+    @Override
+    public synchronized boolean offer(Task task) {
+        if (!refilling && spill.isEmpty() && tail.isEmpty() && head.size() < headCapacity) {
+            head.offer(task); // nothing older is waiting outside the head
+            return true;
+        }
+        tail.offer(task);
+        if (tail.size() >= tailCapacity) {
+            spillTail();
+        }
+        return true;
+    }
+
+    private void spillTail() {
+        if (!spill.offerAll(tail)) {
+            throw new IllegalStateException("fail to spill tasks to disk");
+        }
+        tail.clear();
+    }
+
+    @Override
+    public synchronized Task poll() {
+        if (head.isEmpty()) {
+            awaitRefill();
+            if (head.isEmpty()) {
+                if (!spill.isEmpty()) {
+                    spill.drainTo(head, headCapacity);
+                } else {
+                    // the tail is next to the head now
+                    head.addAll(tail);
+                    tail.clear();
+                }
+            }
+        }
+        Task task = head.poll();
+        if (task != null && head.size() < refillThreshold && !refilling && !spill.isEmpty()) {
+            refilling = true;
+            int count = headCapacity - head.size();
+            try {
+                refiller.execute(() -> refill(count));
+            } catch (RejectedExecutionException e) {
+                refilling = false; // closed, nobody would ever reset it and awaitRefill would hang
+            }
+        }
+        return task;
+    }
+
+    private void refill(int count) {
+        List<Task> tasks = new ArrayList<>(count);
+        try {
+            spill.drainTo(tasks, count); // decoded outside the monitor
+        } finally {
+            synchronized (this) {
+                head.addAll(tasks);
+                refilling = false;
+                notifyAll();
+            }
+        }
+    }
+
+    // an interrupt does not cut the wait short, the refill always ends (see the finally in
+    // refill), and going on before would reorder its batch behind newer tasks or undo a clear
+    private void awaitRefill() {
+        boolean interrupted = false;
+        while (refilling) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized Task peek() {
+        if (!head.isEmpty()) {
+            return head.peek();
+        }
+        awaitRefill();
+        Task task = head.peek();
+        if (task == null) {
+            task = spill.peek();
+        }
+        return task != null ? task : tail.peek();
+    }
+
+    @Override
+    public synchronized int size() {
+        return head.size() + spill.size() + tail.size();
+    }
+
+    // a refill in progress holds tasks that are counted nowhere
+    @Override
+    public synchronized long getDelayMillis() {
+        return refilling || size() > 0 ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized Iterator<Task> iterator() {
+        awaitRefill();
+        return Iterators.unmodifiableIterator(Iterators.concat(head.iterator(), spill.iterator(), tail.iterator()));
+    }
+
+    @Override
+    public synchronized void clear() {
+        awaitRefill();
+        head.clear();
+        spill.clear();
+        tail.clear();
+    }
+
+    // releases the refiller and the spill file, tasks in memory are not persisted
+    // here, pause the scheduler to keep them.
+    public synchronized void close() {
+        awaitRefill();
+        refiller.shutdown();
+        spill.close();
+    }
+
+    public int getHeadCapacity() {
+        return headCapacity;
+    }
+
+    public int getTailCapacity() {
+        return tailCapacity;
+    }
+}
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+
 package cc.gospy.core.scheduler.queue.impl;
 
 import cc.gospy.core.entity.Task;
@@ -22,106 +23,266 @@ import cc.gospy.core.scheduler.queue.LazyTaskQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.*;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
+// a hierarchical timing wheel of millisecond resolution. a task is put into the bucket of
+// its due time in O(1), the buckets of the coarser wheels are cascaded into the finer ones
+// as their time comes, and due tasks are handed to the handler in batches. one ticker
+// thread serves all the queues, and it sleeps until the next non-empty bucket is due.
 public class TimingLazyTaskQueue extends LazyTaskQueue {
     private static final Logger logger = LoggerFactory.getLogger(TimingLazyTaskQueue.class);
-    private Thread checkThread = null;
-    private int checkPeriodInSeconds = 60;
+    private static final int WHEEL_SIZE = 64; // slots, the wheels span 64ms, 4s, 4.4min, 4.7h, 12d ...
+    private static final DelayQueue<Bucket> scheduledBuckets = new DelayQueue<>(); // of all the queues
+    private static Thread ticker;
+
+    private final Wheel wheel;
+    private final Bucket dueBucket; // tasks already due when added
+    private int size;
 
     public TimingLazyTaskQueue(LazyTaskHandler handler) {
         super(handler);
-        this.lazyTaskQueue = new PriorityQueue<>((t0, t1)
-                -> (t0.getLastVisitTimeMillis() + TimeUnit.SECONDS.toMillis(t0.getExpectedVisitInSeconds()))
-                - (t1.getLastVisitTimeMillis() + TimeUnit.SECONDS.toMillis(t1.getExpectedVisitInSeconds())) < 0 ? -1 : 1);
-    }
-
-    class TimingLazyTaskChecker implements Runnable {
-        public void run() {
-            while (checkPeriodInSeconds != 0) {
-                try {
-                    Thread.sleep(TimeUnit.SECONDS.toMillis(checkPeriodInSeconds));
-                    while (poll() != null) {
-                        if (checkPeriodInSeconds == 0) break;
+        this.wheel = new Wheel(1, System.currentTimeMillis());
+        this.dueBucket = new Bucket(this);
+    }
+
+    private static long getDueTimeMillis(Task task) {
+        return task.getLastVisitTimeMillis() + TimeUnit.SECONDS.toMillis(task.getExpectedVisitInSeconds());
+    }
+
+    private static void schedule(Bucket bucket) {
+        scheduledBuckets.offer(bucket);
+        synchronized (TimingLazyTaskQueue.class) {
+            if (ticker == null) {
+                ticker = new Thread(TimingLazyTaskQueue::tick, "lazy-task-ticker");
+                ticker.setDaemon(true);
+                ticker.start();
+            }
+        }
+    }
+
+    private static void tick() {
+        Map<TimingLazyTaskQueue, List<Task>> batches = new IdentityHashMap<>();
+        while (true) {
+            try {
+                Bucket bucket = scheduledBuckets.take();
+                do { // drain all the buckets due by now, then hand off
+                    bucket.owner.expire(bucket, batches.computeIfAbsent(bucket.owner, queue -> new ArrayList<>()));
+                } while ((bucket = scheduledBuckets.poll()) != null);
+            } catch (InterruptedException e) {
+                logger.warn("Lazy task ticker interrupted.");
+            }
+            batches.forEach((queue, tasks) -> {
+                if (!tasks.isEmpty()) {
+                    try {
+                        queue.handler.invokeAll(tasks);
+                    } catch (Throwable throwable) {
+                        logger.error("Failed to hand off {} lazy tasks: {}", tasks.size(), throwable.getMessage(), throwable);
                     }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    return;
                 }
+            });
+            batches.clear();
+        }
+    }
+
+    // cascade the bucket into the finer wheels, tasks that are due go to the batch
+    private synchronized void expire(Bucket bucket, List<Task> batch) {
+        if (bucket.expirationMillis < 0) {
+            return; // cleared by stop()
+        }
+        if (bucket != dueBucket) {
+            wheel.advance(bucket.expirationMillis);
+        }
+        List<Task> tasks = bucket.tasks;
+        bucket.tasks = new ArrayList<>();
+        bucket.expirationMillis = -1;
+        for (Task task : tasks) {
+            if (!wheel.add(task, getDueTimeMillis(task))) {
+                batch.add(task);
+                size--;
             }
-            checkThread = null;
-            checkPeriodInSeconds = 60;
         }
     }
 
     @Override
-    protected boolean ready() {
-        Task peakTask = peek();
-        return peakTask != null && (peakTask.getExpectedVisitInSeconds() == 0 ||
-                (System.currentTimeMillis() - peakTask.getLastVisitTimeMillis() >
-                        TimeUnit.SECONDS.toMillis(peakTask.getExpectedVisitInSeconds())));
+    protected synchronized boolean ready() {
+        Task task = peek();
+        return task != null && getDueTimeMillis(task) <= System.currentTimeMillis();
     }
 
     @Override
-    public void stop() {
-        if (checkThread != null) {
-            checkThread.interrupt();
-            logger.info("Lazy task queue stopped.");
+    public synchronized boolean add(Task task) {
+        size++;
+        if (!wheel.add(task, getDueTimeMillis(task))) {
+            dueBucket.tasks.add(task); // the ticker hands it off, never the caller
+            if (dueBucket.expirationMillis < 0) {
+                dueBucket.expirationMillis = System.currentTimeMillis();
+                schedule(dueBucket);
+            }
         }
-        lazyTaskQueue.clear();
-        checkPeriodInSeconds = 0;
-        checkThread = null;
+        return true;
     }
 
     @Override
-    public boolean add(Task task) {
-        int taskExpectedRecallCycle = task.getExpectedVisitInSeconds();
-        if (taskExpectedRecallCycle > 0 && (checkPeriodInSeconds == 0
-                || taskExpectedRecallCycle < checkPeriodInSeconds)) {
-            checkPeriodInSeconds = taskExpectedRecallCycle; // update ticks
-        }
-        if (checkThread == null) {
-            checkThread = new Thread(new TimingLazyTaskChecker());
-            checkThread.start();
-        }
-        synchronized (this) {
-            return super.add(task);
+    public boolean offer(Task task) {
+        return add(task);
+    }
+
+    // the earliest task, o(n) since the ticker hands tasks off on its own
+    @Override
+    public synchronized Task peek() {
+        Task earliest = null;
+        for (Task task : this) {
+            if (earliest == null || getDueTimeMillis(task) < getDueTimeMillis(earliest)) {
+                earliest = task;
+            }
         }
+        return earliest;
     }
 
+    // hand off the earliest task if it is due, o(n) as well
     @Override
     public Task poll() {
+        Task task;
         synchronized (this) {
-            try {
-                // return instantly even its null
-                return super.poll();
-            } finally {
-                if (lazyTaskQueue.size() == 0) {
-                    checkPeriodInSeconds = 0;
+            task = peek();
+            if (task == null || getDueTimeMillis(task) > System.currentTimeMillis()) {
+                return null;
+            }
+            for (Bucket bucket : getBuckets()) {
+                if (bucket.tasks.remove(task)) {
+                    size--;
+                    break;
                 }
             }
         }
+        handler.invoke(task);
+        return task;
+    }
+
+    private List<Bucket> getBuckets() {
+        List<Bucket> buckets = new ArrayList<>();
+        buckets.add(dueBucket);
+        for (Wheel w = wheel; w != null; w = w.overflow) {
+            buckets.addAll(Arrays.asList(w.slots));
+        }
+        return buckets;
     }
 
+    // a snapshot
     @Override
-    public Iterator<Task> iterator() {
-        return lazyTaskQueue.iterator();
+    public synchronized Iterator<Task> iterator() {
+        List<Task> tasks = new ArrayList<>(size);
+        for (Bucket bucket : getBuckets()) {
+            tasks.addAll(bucket.tasks);
+        }
+        return tasks.iterator();
     }
 
     @Override
-    public int size() {
-        return lazyTaskQueue.size();
+    public synchronized Iterator<Task> dump() {
+        try {
+            return iterator();
+        } finally {
+            clear();
+        }
     }
 
     @Override
-    public boolean offer(Task task) {
-        return lazyTaskQueue.offer(task);
+    public synchronized void clear() {
+        for (Bucket bucket : getBuckets()) {
+            if (bucket.expirationMillis >= 0) {
+                scheduledBuckets.remove(bucket);
+            }
+            bucket.tasks = new ArrayList<>();
+            bucket.expirationMillis = -1;
+        }
+        size = 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
     }
 
     @Override
-    public Task peek() {
-        return lazyTaskQueue.peek();
+    public void stop() {
+        clear();
+        logger.info("Lazy task queue stopped.");
+    }
+
+    // a wheel of WHEEL_SIZE buckets, each spans a tick. tasks beyond the span of this
+    // wheel go to an overflow wheel, whose tick is the span of this one.
+    private class Wheel {
+        private final long tickMillis;
+        private final long spanMillis;
+        private final Bucket[] slots;
+        private long currentTimeMillis; // a multiple of tick
+        private Wheel overflow;
+
+        private Wheel(long tickMillis, long startTimeMillis) {
+            this.tickMillis = tickMillis;
+            this.spanMillis = tickMillis * WHEEL_SIZE;
+            this.slots = new Bucket[WHEEL_SIZE];
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                slots[i] = new Bucket(TimingLazyTaskQueue.this);
+            }
+            this.currentTimeMillis = startTimeMillis - startTimeMillis % tickMillis;
+        }
+
+        // false if the task is already due
+        private boolean add(Task task, long dueTimeMillis) {
+            if (dueTimeMillis < currentTimeMillis + tickMillis) {
+                return false;
+            }
+            if (dueTimeMillis < currentTimeMillis + spanMillis) {
+                long virtualId = dueTimeMillis / tickMillis;
+                Bucket bucket = slots[(int) (virtualId % WHEEL_SIZE)];
+                bucket.tasks.add(task);
+                long expirationMillis = virtualId * tickMillis;
+                if (bucket.expirationMillis != expirationMillis) {
+                    // the clock only moves to the earliest scheduled bucket, so a slot is
+                    // never shared by two rounds.
+                    bucket.expirationMillis = expirationMillis;
+                    schedule(bucket);
+                }
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Wheel(spanMillis, currentTimeMillis);
+            }
+            return overflow.add(task, dueTimeMillis);
+        }
+
+        private void advance(long timeMillis) {
+            if (timeMillis >= currentTimeMillis + tickMillis) {
+                currentTimeMillis = timeMillis - timeMillis % tickMillis;
+                if (overflow != null) {
+                    overflow.advance(currentTimeMillis);
+                }
+            }
+        }
+    }
+
+    private static class Bucket implements Delayed {
+        private final TimingLazyTaskQueue owner;
+        private List<Task> tasks = new ArrayList<>(); // guarded by the owner
+        private volatile long expirationMillis = -1; // -1 if not scheduled
+
+        private Bucket(TimingLazyTaskQueue owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expirationMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(expirationMillis, ((Bucket) o).expirationMillis);
+        }
     }
 }
@@ -20,22 +20,43 @@ import cc.gospy.core.entity.Task;
 import cc.gospy.core.scheduler.Recoverable;
 import cc.gospy.core.scheduler.remover.DuplicateRemover;
 import cc.gospy.core.util.Experimental;
+import cc.gospy.core.util.bloomfilter.FileMappedBloomFilter;
 import cc.gospy.core.util.bloomfilter.ScalableBloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 @Experimental
-public class BloomDuplicateRemover implements DuplicateRemover, Recoverable {
-    private ScalableBloomFilter bloomFilter = new ScalableBloomFilter();
+public class BloomDuplicateRemover implements DuplicateRemover, Recoverable, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BloomDuplicateRemover.class);
+    private ScalableBloomFilter bloomFilter;
+    private FileMappedBloomFilter<Task> mappedBloomFilter;
     private Set<Task> taskWhiteList = Collections.synchronizedSet(new HashSet<>());
     private long counter;
 
+    public BloomDuplicateRemover() {
+        this.bloomFilter = new ScalableBloomFilter();
+    }
+
+    // file-mapped mode, the filter lives in dir and survives restarts without any heap cost
+    public BloomDuplicateRemover(String dir, long expectedInsertions, double fpp) throws IOException {
+        this.mappedBloomFilter = new FileMappedBloomFilter<>(
+                new File(dir, this.getClass().getTypeName() + ".bloom"), Task.DIGEST, Task.DIGEST_VERSION, expectedInsertions, fpp);
+        this.counter = mappedBloomFilter.approximateElementCount();
+    }
+
     @Override
     public void record(Task task) {
         if (taskWhiteList.contains(task)) {
             taskWhiteList.remove(task);
+        } else if (mappedBloomFilter != null) {
+            mappedBloomFilter.put(task);
         } else {
             bloomFilter.put(task);
         }
@@ -53,7 +74,8 @@ public class BloomDuplicateRemover implements DuplicateRemover, Recoverable {
 
     @Override
     public boolean exists(Task task) {
-        return !taskWhiteList.contains(task) && bloomFilter.mightContain(task);
+        return !taskWhiteList.contains(task) && (mappedBloomFilter != null
+                ? mappedBloomFilter.mightContain(task) : bloomFilter.mightContain(task));
     }
 
     @Override
@@ -61,13 +83,32 @@ public class BloomDuplicateRemover implements DuplicateRemover, Recoverable {
         return counter;
     }
 
+    // dir is ignored in file-mapped mode as well
     @Override
     public void pause(String dir) throws Throwable {
+        if (mappedBloomFilter != null) {
+            // the filter is already on disk, just flush it
+            mappedBloomFilter.force();
+            logger.info("Bloom remover data is synced to {}", mappedBloomFilter.getFile().getPath());
+            return;
+        }
         bloomFilter.saveToFile(dir);
     }
 
+    // dir is ignored in file-mapped mode, the filter is reopened from the file given to the constructor
     @Override
     public void resume(String dir) throws Throwable {
+        if (mappedBloomFilter != null) {
+            logger.info("Bloom remover data is mapped from {}", mappedBloomFilter.getFile().getPath());
+            return;
+        }
         bloomFilter.readFromFile(dir);
     }
+
+    @Override
+    public void close() throws IOException {
+        if (mappedBloomFilter != null) {
+            mappedBloomFilter.close();
+        }
+    }
 }
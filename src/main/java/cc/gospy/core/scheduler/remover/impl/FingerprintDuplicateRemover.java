@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.gospy.core.scheduler.remover.impl;
+
+import cc.gospy.core.entity.Task;
+import cc.gospy.core.scheduler.Recoverable;
+import cc.gospy.core.scheduler.remover.DuplicateRemover;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+
+// exact duplicate remover which only keeps a 64-bit fingerprint (and a visit counter)
+// per task, in an open-addressing table of primitive arrays. about 12 bytes per slot.
+public class FingerprintDuplicateRemover implements DuplicateRemover, Recoverable {
+    private static final Logger logger = LoggerFactory.getLogger(FingerprintDuplicateRemover.class);
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final long EMPTY = 0L;
+    private static final int MAGIC = 0x67667072; // "gfpr", followed by Task.DIGEST_VERSION
+
+    private long[] fingerprints;
+    private int[] counters;
+    private int mask;
+    private int size;
+
+    public FingerprintDuplicateRemover() {
+        this(1 << 16);
+    }
+
+    public FingerprintDuplicateRemover(int expectedInsertions) {
+        allocate(tableSizeFor((long) (expectedInsertions / LOAD_FACTOR) + 1));
+    }
+
+    private static int tableSizeFor(long capacity) {
+        if (capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity too large: " + capacity);
+        }
+        return Math.max(16, Integer.highestOneBit((int) capacity - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        this.fingerprints = new long[capacity];
+        this.counters = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static long fingerprint(Task task) {
+        return task.getFingerprint(); // never zero, which marks an empty slot
+    }
+
+    private int home(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    // slot of the fingerprint, or the empty slot where it should be inserted
+    private int slotOf(long fingerprint) {
+        int slot = home(fingerprint);
+        while (fingerprints[slot] != EMPTY && fingerprints[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldFingerprints = fingerprints;
+        int[] oldCounters = counters;
+        allocate(oldFingerprints.length << 1);
+        for (int i = 0; i < oldFingerprints.length; i++) {
+            if (oldFingerprints[i] != EMPTY) {
+                int slot = slotOf(oldFingerprints[i]);
+                fingerprints[slot] = oldFingerprints[i];
+                counters[slot] = oldCounters[i];
+            }
+        }
+        logger.info("Fingerprint table grows to {} slots.", fingerprints.length);
+    }
+
+    @Override
+    public synchronized void record(Task task) {
+        long fingerprint = fingerprint(task);
+        int slot = slotOf(fingerprint);
+        if (fingerprints[slot] == fingerprint) {
+            counters[slot]++;
+            return;
+        }
+        fingerprints[slot] = fingerprint;
+        counters[slot] = 1;
+        if (++size > fingerprints.length * LOAD_FACTOR) {
+            grow();
+        }
+    }
+
+    @Override
+    public synchronized void delete(Task task) {
+        long fingerprint = fingerprint(task);
+        int slot = slotOf(fingerprint);
+        if (fingerprints[slot] == EMPTY) {
+            return;
+        }
+        // backward-shift deletion, keeps the probe chains intact without tombstones
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (fingerprints[next] == EMPTY) {
+                break;
+            }
+            int home = home(fingerprints[next]);
+            boolean inPlace = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!inPlace) {
+                fingerprints[slot] = fingerprints[next];
+                counters[slot] = counters[next];
+                slot = next;
+            }
+        }
+        fingerprints[slot] = EMPTY;
+        counters[slot] = 0;
+        size--;
+    }
+
+    @Override
+    public synchronized boolean exists(Task task) {
+        long fingerprint = fingerprint(task);
+        return fingerprints[slotOf(fingerprint)] == fingerprint;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    // visit count recorded for the task, 0 if not recorded
+    public synchronized int getRecordCount(Task task) {
+        long fingerprint = fingerprint(task);
+        int slot = slotOf(fingerprint);
+        return fingerprints[slot] == fingerprint ? counters[slot] : 0;
+    }
+
+    @Override
+    public synchronized void pause(String dir) throws Throwable {
+        File file = new File(dir, this.getClass().getTypeName() + ".tmp");
+        logger.info("Saving fingerprint remover data to file {}...", file.getPath());
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(Task.DIGEST_VERSION);
+            outputStream.writeInt(fingerprints.length);
+            outputStream.writeInt(size);
+            for (int i = 0; i < fingerprints.length; i++) {
+                outputStream.writeLong(fingerprints[i]);
+                outputStream.writeInt(counters[i]);
+            }
+        }
+        logger.info("Fingerprint remover data is successfully saved.");
+    }
+
+    @Override
+    public synchronized void resume(String dir) throws Throwable {
+        File file = new File(dir, this.getClass().getTypeName() + ".tmp");
+        logger.info("Reading fingerprint remover data from file {}...", file.getPath());
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            // files without the header were written before the digest was versioned
+            int digestVersion = inputStream.readInt() == MAGIC ? inputStream.readInt() : 1;
+            if (digestVersion != Task.DIGEST_VERSION) {
+                throw new IOException("fingerprint file " + file.getPath() + " is keyed by task digest version "
+                        + digestVersion + ", expected " + Task.DIGEST_VERSION);
+            }
+            allocate(inputStream.readInt());
+            size = inputStream.readInt();
+            for (int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] = inputStream.readLong();
+                counters[i] = inputStream.readInt();
+            }
+        }
+        logger.info("Fingerprint remover data is successfully loaded.");
+    }
+}
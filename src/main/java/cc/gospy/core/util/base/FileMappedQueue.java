@@ -28,12 +28,14 @@ import java.nio.channels.Channel;
 import java.nio.channels.FileChannel;
 import java.security.AccessController;
 import java.security.PrivilegedExceptionAction;
-import java.util.AbstractQueue;
-import java.util.Iterator;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
+public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> implements Closeable {
 
     private static Logger logger = LoggerFactory.getLogger(FileMappedQueue.class);
 
@@ -74,8 +76,22 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
     private MappedByteBuffer dequeuePage;
     private ByteBuffer enqueueBuf;
     private ByteBuffer dequeueBuf;
+    private Codec<T> codec; // java serialization if null
+    private SyncPolicy syncPolicy;
+    private ScheduledExecutorService syncer;
+    private int unsyncedRecords; // guarded by enqueueLock
+    private boolean closed; // guarded by enqueueLock
+    private volatile boolean dirty;
 
     public FileMappedQueue(String dir) throws IOException {
+        this(dir, null);
+    }
+
+    public FileMappedQueue(String dir, Codec<T> codec) throws IOException {
+        this(dir, codec, SyncPolicy.NEVER);
+    }
+
+    public FileMappedQueue(String dir, Codec<T> codec, SyncPolicy syncPolicy) throws IOException {
         if (dir == null || dir.trim().length() == 0) {
             throw new IllegalArgumentException("dir can not be null.");
         }
@@ -85,6 +101,8 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
             base.mkdirs();
         }
         this.dir = base;
+        this.codec = codec;
+        this.syncPolicy = syncPolicy;
         this.size = new AtomicInteger();
         this.enqueueLock = new ReentrantLock();
         this.dequeueLock = new ReentrantLock();
@@ -93,6 +111,18 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         } else {
             this.init();
         }
+        if (syncPolicy.intervalMillis > 0) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "fmq-syncer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncer.scheduleWithFixedDelay(() -> {
+                if (dirty) {
+                    sync();
+                }
+            }, syncPolicy.intervalMillis, syncPolicy.intervalMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void load() throws IOException {
@@ -109,11 +139,12 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         enqueueIndex.position(EN_CNT_OFFSET);
         this.enqueueCount = enqueueIndex.getInt();
         dequeueIndex.position(DE_NUM_OFFSET);
-        this.dequeuePageNumber = enqueueIndex.getInt();
+        this.dequeuePageNumber = dequeueIndex.getInt();
         dequeueIndex.position(DE_POS_OFFSET);
-        this.dequeuePosition = enqueueIndex.getInt();
+        this.dequeuePosition = dequeueIndex.getInt();
         dequeueIndex.position(DE_CNT_OFFSET);
-        this.dequeueCount = enqueueIndex.getInt();
+        this.dequeueCount = dequeueIndex.getInt();
+        this.size.set(enqueueCount - dequeueCount); // both counters may overflow
         logger.info("Page index [{}] has successfully loaded.", idxFile.getPath());
 
         // load en/dequeue page file
@@ -173,12 +204,11 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         this.enqueueBuf.putInt(-1); // EOF
     }
 
-    private boolean isEndOfDequeuePage() {
+    private boolean isEndOfDequeuePage(int dequeuePosition) {
         return dequeuePosition > 0 && dequeueBuf.getInt(dequeuePosition) == -1; // EOF
     }
 
-    private boolean isEnqueueSpaceAvailable(int tSize) {
-        int enqueuePosition = getEnqueuePosition();
+    private boolean isEnqueueSpaceAvailable(int enqueuePosition, int tSize) {
         return PAGE_CAPACITY >= enqueuePosition + tSize + 2 * Integer.BYTES; // last byte for EOF
     }
 
@@ -198,7 +228,19 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         logger.info("Enqueue page has successfully shifted to [${}].", enqueuePageNumber);
     }
 
+    // the dequeue side may take over the enqueue page, which the enqueue side unmaps when it
+    // shifts away from a page the dequeue side is not on. so the hand-over is done under both
+    // locks, and the locks are always taken in the order of dequeue, enqueue.
     private void shiftDequeuePage() throws IOException {
+        enqueueLock.lock();
+        try {
+            shiftDequeuePage0();
+        } finally {
+            enqueueLock.unlock();
+        }
+    }
+
+    private void shiftDequeuePage0() throws IOException {
         logger.info("Shifting dequeue page...");
         if (dequeuePageNumber == enqueuePageNumber) {
             return;
@@ -206,9 +248,9 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         int nextDequeuePageNumber = dequeuePageNumber == Integer.MAX_VALUE ? 0 : dequeuePageNumber + 1; // rotate if int overflows
         close(dequeuePageFile, dequeuePageChannel, dequeuePage);
         dequeueBuf = null;
+        final int target = dequeuePageNumber; // captured before the shift below
         new Thread(() -> {
             try {
-                int target = dequeuePageNumber;
                 int retry = 3;
                 logger.info("Removing dequeue page [${}]...", target);
                 File pastPage = getPageFile(getPagePath(target));
@@ -263,37 +305,104 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         }
     }
 
-    private T dequeueFromPage() throws Exception {
-        byte[] bytes;
-        int dequeuePageNumber = getDequeuePageNumber();
-        int dequeuePosition = getDequeuePosition();
-        int enqueuePageNumber = getEnqueuePageNumber();
+    private byte[] encode(T t) throws IOException {
+        byte[] bytes = codec != null ? codec.encode(t) : objectToBytes(t);
+        if (bytes.length + 2 * Integer.BYTES > PAGE_CAPACITY) {
+            throw new IOException("record size " + bytes.length + " exceeds the page capacity");
+        }
+        return bytes;
+    }
+
+    private T decode(byte[] bytes) throws Exception {
+        return codec != null ? codec.decode(bytes) : bytesToObject(bytes);
+    }
+
+    // appends the records to the pages, the index is written (and the records become
+    // visible to the dequeue side) once per page rather than once per record.
+    private void enqueueToPage(List<byte[]> records) throws IOException {
         int enqueuePosition = getEnqueuePosition();
-        if (dequeuePageNumber == enqueuePageNumber && dequeuePosition >= enqueuePosition) {
-            return null;
+        int enqueueCount = getEnqueueCount();
+        int pending = 0;
+        for (byte[] bytes : records) {
+            if (!isEnqueueSpaceAvailable(enqueuePosition, bytes.length)) {
+                commitEnqueue(enqueuePosition, enqueueCount, pending);
+                pending = 0;
+                shiftEnqueuePage();
+                enqueuePosition = getEnqueuePosition();
+            }
+            enqueueBuf.position(enqueuePosition);
+            enqueueBuf.putInt(bytes.length);
+            enqueueBuf.put(bytes);
+            enqueuePosition += Integer.BYTES + bytes.length;
+            enqueueCount++;
+            pending++;
         }
-        dequeueBuf.position(dequeuePosition);
-        int length = dequeueBuf.getInt();
-        if (length <= 0) {
-            return null;
+        commitEnqueue(enqueuePosition, enqueueCount, pending);
+        unsyncedRecords += records.size();
+        dirty = true;
+        if (syncPolicy.intervalRecords > 0 && unsyncedRecords >= syncPolicy.intervalRecords) {
+            force();
         }
-        bytes = new byte[length];
-        dequeueBuf.get(bytes);
-        setDequeuePosition(dequeuePosition + Integer.BYTES + length);
-        setDequeueCount(getDequeueCount() + 1);
-        return bytesToObject(bytes);
     }
 
-    private int enqueueToPage(byte[] bytes) {
-        int length = bytes.length;
-        int increment = Integer.BYTES + length;
-        int enqueuePosition = getEnqueuePosition();
-        enqueueBuf.position(enqueuePosition);
-        enqueueBuf.putInt(length);
-        enqueueBuf.put(bytes);
-        setEnqueuePosition(enqueuePosition + increment);
-        setEnqueueCount(getEnqueueCount() + 1);
-        return increment;
+    private void commitEnqueue(int enqueuePosition, int enqueueCount, int pending) {
+        size.addAndGet(pending); // before the position, so that size never goes negative
+        setEnqueueCount(enqueueCount);
+        setEnqueuePosition(enqueuePosition);
+    }
+
+    // reads up to maxRecords from the head, and moves the head past them if consume
+    private void dequeueFromPage(List<byte[]> records, int maxRecords, boolean consume) throws IOException {
+        int dequeuePosition = getDequeuePosition();
+        int dequeueCount = getDequeueCount();
+        int taken = 0;
+        while (records.size() < maxRecords) {
+            if (isEndOfDequeuePage(dequeuePosition)) {
+                int dequeuePageNumber = getDequeuePageNumber();
+                commitDequeue(dequeuePosition, dequeueCount, taken);
+                taken = 0;
+                shiftDequeuePage();
+                if (getDequeuePageNumber() == dequeuePageNumber) {
+                    break; // the enqueue side is still shifting
+                }
+                dequeuePosition = getDequeuePosition();
+                continue;
+            }
+            if (getDequeuePageNumber() == getEnqueuePageNumber() && dequeuePosition >= getEnqueuePosition()) {
+                break;
+            }
+            int length = dequeueBuf.getInt(dequeuePosition);
+            if (length <= 0) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            dequeueBuf.position(dequeuePosition + Integer.BYTES);
+            dequeueBuf.get(bytes);
+            records.add(bytes);
+            if (consume) {
+                dequeuePosition += Integer.BYTES + length;
+                dequeueCount++;
+                taken++;
+            }
+        }
+        commitDequeue(dequeuePosition, dequeueCount, taken);
+    }
+
+    private void commitDequeue(int dequeuePosition, int dequeueCount, int taken) {
+        if (taken > 0) {
+            setDequeueCount(dequeueCount);
+            setDequeuePosition(dequeuePosition);
+            size.addAndGet(-taken);
+            dirty = true;
+        }
+    }
+
+    // must hold the enqueue lock, the dequeue index shares the mapping of the enqueue index
+    private void force() {
+        enqueuePage.force();
+        enqueueIndex.force();
+        unsyncedRecords = 0;
+        dirty = false;
     }
 
     private void close(RandomAccessFile file, Channel channel, MappedByteBuffer mappedFile) {
@@ -360,9 +469,74 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         this.dequeueCount = dequeueCount;
     }
 
+    // iterates the records between the head and the tail at the time of calling, the
+    // pages are re-mapped read only, so polls must not run while iterating.
     @Override
     public Iterator<T> iterator() {
-        throw new UnsupportedOperationException();
+        final int startPageNumber, startPosition, endPageNumber, endPosition;
+        dequeueLock.lock();
+        enqueueLock.lock();
+        try {
+            startPageNumber = getDequeuePageNumber();
+            startPosition = getDequeuePosition();
+            endPageNumber = getEnqueuePageNumber();
+            endPosition = getEnqueuePosition();
+        } finally {
+            enqueueLock.unlock();
+            dequeueLock.unlock();
+        }
+        return new Iterator<T>() {
+            private int pageNumber = startPageNumber;
+            private int position = startPosition;
+            private ByteBuffer page;
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    next = readNext();
+                }
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T t = next;
+                next = null;
+                return t;
+            }
+
+            private T readNext() {
+                try {
+                    while (pageNumber != endPageNumber || position < endPosition) {
+                        if (page == null) {
+                            try (RandomAccessFile file = new RandomAccessFile(getPageFile(getPagePath(pageNumber)), "r");
+                                 FileChannel channel = file.getChannel()) {
+                                page = channel.map(FileChannel.MapMode.READ_ONLY, 0, PAGE_CAPACITY);
+                            }
+                        }
+                        int length = page.getInt(position);
+                        if (length <= 0) { // EOF
+                            pageNumber = pageNumber == Integer.MAX_VALUE ? 0 : pageNumber + 1;
+                            position = 0;
+                            page = null;
+                            continue;
+                        }
+                        byte[] bytes = new byte[length];
+                        page.position(position + Integer.BYTES);
+                        page.get(bytes);
+                        position += Integer.BYTES + length;
+                        return decode(bytes);
+                    }
+                    return null;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+        };
     }
 
     @Override
@@ -372,17 +546,30 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
 
     @Override
     public boolean offer(T t) {
-        if (t == null) {
+        return t == null || offerAll(Collections.singletonList(t));
+    }
+
+    // enqueues all the elements under one lock acquisition, records are encoded before
+    // taking the lock. returns false if any of them can not be encoded, in which case
+    // nothing is enqueued.
+    public boolean offerAll(Collection<? extends T> c) {
+        List<byte[]> records = new ArrayList<>(c.size());
+        try {
+            for (T t : c) {
+                if (t != null) {
+                    records.add(encode(t));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (records.isEmpty()) {
             return true;
         }
         enqueueLock.lock();
         try {
-            byte[] bytes = objectToBytes(t);
-            if (!isEnqueueSpaceAvailable(bytes.length)) {
-                shiftEnqueuePage();
-            }
-            enqueueToPage(bytes);
-            size.incrementAndGet();
+            enqueueToPage(records);
             return true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -392,29 +579,105 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
         }
     }
 
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (!offerAll(c)) {
+            throw new IllegalStateException("Queue full");
+        }
+        return !c.isEmpty();
+    }
+
     @Override
     public T poll() {
+        List<T> ts = new ArrayList<>(1);
+        return drainTo(ts, 1) > 0 ? ts.get(0) : null;
+    }
+
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    // removes at most maxElements from the head into c, the index is written once per page
+    // and the records are decoded after releasing the lock.
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        List<byte[]> records = new ArrayList<>(Math.min(maxElements, 256));
         dequeueLock.lock();
         try {
-            if (isEndOfDequeuePage()) {
-                shiftDequeuePage();
-            }
-            T t = dequeueFromPage();
-            if (t != null) {
-                size.incrementAndGet();
-            }
-            return t;
-        } catch (Exception e) {
+            dequeueFromPage(records, maxElements, true);
+        } catch (IOException e) {
             e.printStackTrace();
-            return null;
         } finally {
             dequeueLock.unlock();
         }
+        return decodeAll(records, c);
     }
 
     @Override
     public T peek() {
-        throw new UnsupportedOperationException();
+        List<byte[]> records = new ArrayList<>(1);
+        dequeueLock.lock();
+        try {
+            dequeueFromPage(records, 1, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            dequeueLock.unlock();
+        }
+        List<T> ts = new ArrayList<>(1);
+        return decodeAll(records, ts) > 0 ? ts.get(0) : null;
+    }
+
+    private int decodeAll(List<byte[]> records, Collection<? super T> c) {
+        int count = 0;
+        for (byte[] bytes : records) {
+            try {
+                c.add(decode(bytes));
+                count++;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return count;
+    }
+
+    // forces the written records and the index to disk
+    public void sync() {
+        enqueueLock.lock();
+        try {
+            if (closed) {
+                return; // a scheduled sync which was waiting for close to release the lock
+            }
+            force();
+        } finally {
+            enqueueLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        dequeueLock.lock();
+        enqueueLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            close(dequeuePageFile, dequeuePageChannel, dequeuePage);
+            close(enqueuePageFile, enqueuePageChannel, enqueuePage);
+            close(indexFile, indexFileChannel, enqueueIndex);
+        } finally {
+            enqueueLock.unlock();
+            dequeueLock.unlock();
+        }
     }
 
     private int getEnqueuePageNumber() {
@@ -440,4 +703,33 @@ public class FileMappedQueue<T extends Serializable> extends AbstractQueue<T> {
     private int getDequeueCount() {
         return dequeueCount;
     }
+
+    // when the pages and the index are forced to disk, besides the page shifts
+    public static class SyncPolicy {
+        public static final SyncPolicy NEVER = new SyncPolicy(0, 0); // left to the os
+
+        private final long intervalMillis;
+        private final int intervalRecords;
+
+        private SyncPolicy(long intervalMillis, int intervalRecords) {
+            this.intervalMillis = intervalMillis;
+            this.intervalRecords = intervalRecords;
+        }
+
+        // group commit, a background thread forces the changes of the last interval
+        public static SyncPolicy everyMillis(long intervalMillis) {
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("interval must be positive.");
+            }
+            return new SyncPolicy(intervalMillis, 0);
+        }
+
+        // the writer that enqueues the n-th record since the last sync forces to disk
+        public static SyncPolicy everyRecords(int intervalRecords) {
+            if (intervalRecords <= 0) {
+                throw new IllegalArgumentException("interval must be positive.");
+            }
+            return new SyncPolicy(0, intervalRecords);
+        }
+    }
 }
@@ -16,5 +16,300 @@
 
 package cc.gospy.core.util.bloomfilter;
 
-public class FileMappedBloomFilter {
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Cleaner;
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.atomic.LongAdder;
+
+// a persistent bloom filter, its bit array is a memory-mapped file, so reopening the
+// file restores the filter instantly. bits are set with CAS, no lock is needed.
+public class FileMappedBloomFilter<T> implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FileMappedBloomFilter.class);
+
+    private static final int MAGIC = 0x67626c66; // "gblf"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int HASHES_OFFSET = 8;
+    private static final int BITS_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+    private static final int FUNNEL_VERSION_OFFSET = 32;
+    private static final long SEGMENT_SIZE = 1L << 30; // 1GB for each mapping
+    private static final Unsafe UNSAFE = getUnsafe();
+    private static final long ADDRESS_OFFSET = getAddressOffset();
+
+    private final Funnel<? super T> funnel;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long[] segmentAddresses;
+    private final long numBits;
+    private final int numHashFunctions;
+    private final LongAdder insertions;
+    private final LongAdder inFlight = new LongAdder(); // operations which may touch the mapping
+    private volatile boolean closed;
+
+    public FileMappedBloomFilter(String path, Funnel<? super T> funnel, long expectedInsertions, double fpp) throws IOException {
+        this(new File(path), funnel, 0, expectedInsertions, fpp);
+    }
+
+    public FileMappedBloomFilter(File file, Funnel<? super T> funnel, long expectedInsertions, double fpp) throws IOException {
+        this(file, funnel, 0, expectedInsertions, fpp);
+    }
+
+    // open the filter if the file exists, otherwise create it with the given capacity. the
+    // funnel version is kept in the file, a filter built by another funnel is refused since
+    // none of its bits would match (e.g. Task.DIGEST_VERSION for a filter of tasks).
+    public FileMappedBloomFilter(File file, Funnel<? super T> funnel, int funnelVersion, long expectedInsertions, double fpp) throws IOException {
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        if (!exists && file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        this.file = file;
+        this.funnel = funnel;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (exists) {
+            if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException("not a bloom filter file: " + file.getPath());
+            }
+            if (header.getInt(FUNNEL_VERSION_OFFSET) != funnelVersion) {
+                throw new IOException("bloom filter file " + file.getPath() + " was built with funnel version "
+                        + header.getInt(FUNNEL_VERSION_OFFSET) + ", expected " + funnelVersion + ", delete it to start over");
+            }
+            this.numHashFunctions = header.getInt(HASHES_OFFSET);
+            this.numBits = header.getLong(BITS_OFFSET);
+            this.insertions = new LongAdder();
+            this.insertions.add(header.getLong(COUNT_OFFSET));
+            logger.info("Bloom filter [{}] is loaded. [bits={}, hashes={}]", file.getPath(), numBits, numHashFunctions);
+        } else {
+            long bits = optimalNumOfBits(expectedInsertions, fpp);
+            this.numBits = (bits + Long.SIZE - 1) / Long.SIZE * Long.SIZE; // align to words
+            this.numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
+            this.insertions = new LongAdder();
+            header.putInt(MAGIC_OFFSET, MAGIC);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(HASHES_OFFSET, numHashFunctions);
+            header.putLong(BITS_OFFSET, numBits);
+            header.putLong(COUNT_OFFSET, 0);
+            header.putInt(FUNNEL_VERSION_OFFSET, funnelVersion);
+            logger.info("Bloom filter [{}] is created. [bits={}, hashes={}]", file.getPath(), numBits, numHashFunctions);
+        }
+        long bytes = numBits / Byte.SIZE;
+        int segmentCount = (int) ((bytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        this.segments = new MappedByteBuffer[segmentCount];
+        this.segmentAddresses = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long offset = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + offset, Math.min(SEGMENT_SIZE, bytes - offset));
+            segmentAddresses[i] = UNSAFE.getLong(segments[i], ADDRESS_OFFSET);
+        }
+    }
+
+    // same as guava's BloomFilter
+    private static long optimalNumOfBits(long n, double p) {
+        if (p == 0) {
+            p = Double.MIN_VALUE;
+        }
+        return (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    }
+
+    private static int optimalNumOfHashFunctions(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    private static Unsafe getUnsafe() {
+        try {
+            return AccessController.doPrivileged((PrivilegedExceptionAction<Unsafe>) () -> {
+                Field field = Unsafe.class.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return (Unsafe) field.get(null);
+            });
+        } catch (Exception e) {
+            throw new RuntimeException("sun.misc.Unsafe is not available", e);
+        }
+    }
+
+    private static long getAddressOffset() {
+        try {
+            return UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException("address of direct buffers is not accessible", e);
+        }
+    }
+
+    private long addressOfWord(long bitIndex) {
+        long byteIndex = (bitIndex >>> 6) << 3;
+        return segmentAddresses[(int) (byteIndex / SEGMENT_SIZE)] + byteIndex % SEGMENT_SIZE;
+    }
+
+    // returns true if the bit is changed by this call
+    private boolean setBit(long bitIndex) {
+        long address = addressOfWord(bitIndex);
+        long mask = 1L << bitIndex;
+        long word;
+        do {
+            word = UNSAFE.getLongVolatile(null, address);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!UNSAFE.compareAndSwapLong(null, address, word, word | mask));
+        return true;
+    }
+
+    private boolean getBit(long bitIndex) {
+        return (UNSAFE.getLongVolatile(null, addressOfWord(bitIndex)) & (1L << bitIndex)) != 0;
+    }
+
+    // the raw addresses are only touched between enter and exit, close waits for them to
+    // leave before unmapping, an access after that would crash the vm rather than throw.
+    private void enter() {
+        inFlight.increment();
+        if (closed) {
+            inFlight.decrement();
+            throw new IllegalStateException("bloom filter is closed: " + file.getPath());
+        }
+    }
+
+    private void exit() {
+        inFlight.decrement();
+    }
+
+    // returns true if the bits might have changed, i.e. the element is new
+    public boolean put(T object) {
+        byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).asBytes();
+        long hash1 = lowerEight(bytes, 0);
+        long hash2 = lowerEight(bytes, 8);
+        boolean changed = false;
+        long combinedHash = hash1;
+        enter();
+        try {
+            for (int i = 0; i < numHashFunctions; i++) {
+                changed |= setBit((combinedHash & Long.MAX_VALUE) % numBits);
+                combinedHash += hash2;
+            }
+        } finally {
+            exit();
+        }
+        if (changed) {
+            insertions.increment();
+        }
+        return changed;
+    }
+
+    public boolean mightContain(T object) {
+        byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).asBytes();
+        long hash1 = lowerEight(bytes, 0);
+        long hash2 = lowerEight(bytes, 8);
+        long combinedHash = hash1;
+        enter();
+        try {
+            for (int i = 0; i < numHashFunctions; i++) {
+                if (!getBit((combinedHash & Long.MAX_VALUE) % numBits)) {
+                    return false;
+                }
+                combinedHash += hash2;
+            }
+            return true;
+        } finally {
+            exit();
+        }
+    }
+
+    private static long lowerEight(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset + 7; i >= offset; i--) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    public long approximateElementCount() {
+        return insertions.sum();
+    }
+
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-numHashFunctions * (double) insertions.sum() / numBits), numHashFunctions);
+    }
+
+    public long bitSize() {
+        return numBits;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // sync the bit array to disk
+    public void force() {
+        enter();
+        try {
+            force0();
+        } finally {
+            exit();
+        }
+    }
+
+    private void force0() {
+        header.putLong(COUNT_OFFSET, insertions.sum());
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (inFlight.sum() != 0) {
+            Thread.yield(); // an operation which entered before the flag is still running
+        }
+        force0();
+        unmap(header);
+        for (MappedByteBuffer segment : segments) {
+            unmap(segment);
+        }
+        channel.close();
+        randomAccessFile.close();
+        logger.info("Bloom filter [{}] is closed.", file.getPath());
+    }
+
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            AccessController.doPrivileged((PrivilegedExceptionAction<Object>) () -> {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                ((Cleaner) cleaner.invoke(buffer)).clean();
+                return null;
+            });
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+        }
+    }
 }
@@ -27,6 +27,7 @@ import java.util.List;
 
 public class ScalableBloomFilter implements Serializable {
     private static final Logger logger = LoggerFactory.getLogger(ScalableBloomFilter.class);
+    private static final int MAGIC = 0x67736266; // "gsbf", followed by Task.DIGEST_VERSION
     private List<BloomFilter<Task>> bloomFilters;
     private BloomFilter<Task> activateBloomFilter;
     private final long expectedInsertions;
@@ -69,9 +70,11 @@ public class ScalableBloomFilter implements Serializable {
         for (int i = 0; i < bloomFilters.size(); i++) {
             File file = new File(dir, this.getClass().getTypeName() + "$" + i + ".tmp");
             logger.info("Saving bloom remover data ${} to file {}...", i, file.getPath());
-            FileOutputStream outputStream = new FileOutputStream(file, false);
-            bloomFilters.get(i).writeTo(outputStream);
-            outputStream.close();
+            try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file, false))) {
+                outputStream.writeInt(MAGIC);
+                outputStream.writeInt(Task.DIGEST_VERSION);
+                bloomFilters.get(i).writeTo(outputStream);
+            }
         }
         logger.info("Bloom remover data [$0-${}] is successfully saved.", groupSize() - 1);
     }
@@ -81,9 +84,16 @@ public class ScalableBloomFilter implements Serializable {
         int p = 0;
         while ((file = new File(dir, this.getClass().getTypeName() + "$" + p + ".tmp")).exists()) {
             logger.info("Reading bloom remover data ${} from file {}...", p, file.getPath());
-            FileInputStream inputStream = new FileInputStream(file);
-            this.bloomFilters.clear();
-            bloomFilters.add(activateBloomFilter = BloomFilter.readFrom(inputStream, Task.DIGEST));
+            try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+                // files without the header were written before the digest was versioned
+                int digestVersion = inputStream.readInt() == MAGIC ? inputStream.readInt() : 1;
+                if (digestVersion != Task.DIGEST_VERSION) {
+                    throw new IOException("bloom filter file " + file.getPath() + " is built with task digest version "
+                            + digestVersion + ", expected " + Task.DIGEST_VERSION);
+                }
+                this.bloomFilters.clear();
+                bloomFilters.add(activateBloomFilter = BloomFilter.readFrom(inputStream, Task.DIGEST));
+            }
             p++;
         }
         logger.info("Bloom remover data [$0-${}] is successfully loaded.", groupSize() - 1);
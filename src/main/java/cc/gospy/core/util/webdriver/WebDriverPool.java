@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.gospy.core.util.webdriver;
+
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+// a bounded pool of web drivers, a driver is used by one thread at a time. drivers are
+// created on demand (or all at once on warm-up), checked for health after a failure or
+// a long idle, and recycled after a number of pages to bound the browsers' leaks.
+public class WebDriverPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WebDriverPool.class);
+
+    private Supplier<WebDriver> factory = () -> Browser.HtmlUnit.init(null);
+    private int size = 1;
+    private int maxPagesPerDriver = 1000; // 0 for unlimited
+    private long healthCheckIdleMillis = TimeUnit.SECONDS.toMillis(60);
+    private boolean warmUp = true;
+
+    private final Deque<PooledDriver> idleDrivers = new ArrayDeque<>();
+    private final Map<WebDriver, PooledDriver> leasedDrivers = new IdentityHashMap<>();
+    private int createdCount; // idle, leased and being created
+    private boolean closed;
+
+    private WebDriverPool() {
+    }
+
+    private void init() {
+        if (size < 1) {
+            throw new IllegalArgumentException("pool size must be positive.");
+        }
+        if (warmUp) {
+            try {
+                for (int i = 0; i < size; i++) {
+                    synchronized (this) {
+                        createdCount++;
+                    }
+                    PooledDriver driver = create();
+                    synchronized (this) {
+                        idleDrivers.push(driver);
+                    }
+                }
+            } catch (RuntimeException e) {
+                close(); // quit the ones already started
+                throw e;
+            }
+            logger.info("Web driver pool warmed up. [size={}]", size);
+        }
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static WebDriverPool getDefault() {
+        return new Builder().build();
+    }
+
+    // take a driver, creating one if the pool is not full, or wait for a return
+    public WebDriver lease(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            PooledDriver driver = null;
+            boolean create = false;
+            synchronized (this) {
+                while (!closed && idleDrivers.isEmpty() && createdCount >= size) {
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        throw new TimeoutException("no web driver available in " + unit.toMillis(timeout) + "ms");
+                    }
+                    wait(remainingMillis);
+                }
+                if (closed) {
+                    throw new IllegalStateException("the pool is closed.");
+                }
+                if (!idleDrivers.isEmpty()) {
+                    driver = idleDrivers.pop(); // the most recently used, likely warm
+                } else {
+                    createdCount++;
+                    create = true;
+                }
+            }
+            if (create) {
+                driver = create();
+            } else if (System.currentTimeMillis() - driver.lastUsedTimeMillis > healthCheckIdleMillis && !isHealthy(driver.webDriver)) {
+                logger.warn("Discarded an unhealthy web driver after {}ms idle.", System.currentTimeMillis() - driver.lastUsedTimeMillis);
+                discard(driver);
+                continue;
+            }
+            synchronized (this) {
+                leasedDrivers.put(driver.webDriver, driver);
+            }
+            return driver.webDriver;
+        }
+    }
+
+    // give a driver back after a page, it is recycled once it has served enough pages
+    public void release(WebDriver webDriver) {
+        PooledDriver driver;
+        synchronized (this) {
+            driver = leasedDrivers.remove(webDriver);
+            if (driver == null) {
+                throw new IllegalArgumentException("the web driver is not leased from this pool.");
+            }
+            driver.pageCount++;
+            driver.lastUsedTimeMillis = System.currentTimeMillis();
+            if (!closed && (maxPagesPerDriver == 0 || driver.pageCount < maxPagesPerDriver)) {
+                idleDrivers.push(driver);
+                notify();
+                return;
+            }
+        }
+        discard(driver); // recycled, a new one is created on demand
+    }
+
+    // give back a driver that failed, it is kept only if it still responds
+    public void releaseAfterFailure(WebDriver webDriver) {
+        if (isHealthy(webDriver)) {
+            release(webDriver);
+            return;
+        }
+        PooledDriver driver;
+        synchronized (this) {
+            driver = leasedDrivers.remove(webDriver);
+            if (driver == null) {
+                throw new IllegalArgumentException("the web driver is not leased from this pool.");
+            }
+        }
+        logger.warn("Discarded an unhealthy web driver after {} pages.", driver.pageCount);
+        discard(driver);
+    }
+
+    private static boolean isHealthy(WebDriver webDriver) {
+        try {
+            webDriver.getWindowHandles(); // a round trip to the browser
+            return true;
+        } catch (Throwable throwable) {
+            return false;
+        }
+    }
+
+    private PooledDriver create() {
+        try {
+            return new PooledDriver(factory.get());
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                createdCount--;
+                notify();
+            }
+            throw e;
+        }
+    }
+
+    private void discard(PooledDriver driver) {
+        synchronized (this) {
+            createdCount--;
+            notify();
+        }
+        quit(driver.webDriver);
+    }
+
+    private static void quit(WebDriver webDriver) {
+        try {
+            webDriver.quit();
+        } catch (Throwable throwable) {
+            logger.warn("Failed to quit web driver: {}", throwable.getMessage());
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return idleDrivers.size();
+    }
+
+    public synchronized int getLeasedCount() {
+        return leasedDrivers.size();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // quit the idle drivers now, leased ones on their return
+    @Override
+    public void close() {
+        Deque<PooledDriver> drivers;
+        synchronized (this) {
+            closed = true;
+            drivers = new ArrayDeque<>(idleDrivers);
+            idleDrivers.clear();
+            createdCount -= drivers.size();
+            notifyAll();
+        }
+        drivers.forEach(driver -> quit(driver.webDriver));
+    }
+
+    private static class PooledDriver {
+        private final WebDriver webDriver;
+        private int pageCount;
+        private long lastUsedTimeMillis;
+
+        private PooledDriver(WebDriver webDriver) {
+            this.webDriver = webDriver;
+            this.lastUsedTimeMillis = System.currentTimeMillis();
+        }
+    }
+
+    public static class Builder {
+        private WebDriverPool pool;
+
+        private Builder() {
+            pool = new WebDriverPool();
+        }
+
+        public Builder setDriver(Browser browser, String path) {
+            pool.factory = () -> browser.init(path);
+            return this;
+        }
+
+        public Builder setDriverFactory(Supplier<WebDriver> factory) {
+            pool.factory = factory;
+            return this;
+        }
+
+        public Builder setSize(int size) {
+            pool.size = size;
+            return this;
+        }
+
+        // quit a driver after this many pages, 0 to never recycle
+        public Builder setMaxPagesPerDriver(int maxPagesPerDriver) {
+            pool.maxPagesPerDriver = maxPagesPerDriver;
+            return this;
+        }
+
+        // a driver idle for longer is checked before it is leased again
+        public Builder setHealthCheckIdleSeconds(int healthCheckIdleSeconds) {
+            pool.healthCheckIdleMillis = TimeUnit.SECONDS.toMillis(healthCheckIdleSeconds);
+            return this;
+        }
+
+        // start all the drivers on build (default), instead of on first use
+        public Builder setWarmUp(boolean warmUp) {
+            pool.warmUp = warmUp;
+            return this;
+        }
+
+        public WebDriverPool build() {
+            pool.init();
+            return pool;
+        }
+    }
+}